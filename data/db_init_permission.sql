@@ -10,14 +10,16 @@ CREATE TABLE IF NOT EXISTS perms_roles (
   rid bigint NOT NULL,
   sid bigint NOT NULL,
   pid int NOT NULL,
-  PRIMARY KEY (rid,sid,pid)
+  PRIMARY KEY (rid,sid,pid),
+  KEY perms_roles_sid_rid_pid (sid,rid,pid)
 );;
 
 CREATE TABLE IF NOT EXISTS perms_users (
   uid bigint NOT NULL,
   sid bigint NOT NULL,
   pid int NOT NULL,
-  PRIMARY KEY (uid,sid,pid)
+  PRIMARY KEY (uid,sid,pid),
+  KEY perms_users_sid_uid_pid (sid,uid,pid)
 );;
 
 DROP PROCEDURE IF EXISTS testUserPerm;;
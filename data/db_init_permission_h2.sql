@@ -0,0 +1,25 @@
+CREATE TABLE IF NOT EXISTS perms_def (
+  id int NOT NULL AUTO_INCREMENT,
+  name varchar(64) NOT NULL,
+  isgroup tinyint NOT NULL,
+  PRIMARY KEY (id),
+  UNIQUE KEY name (name)
+);;
+
+CREATE TABLE IF NOT EXISTS perms_roles (
+  rid bigint NOT NULL,
+  sid bigint NOT NULL,
+  pid int NOT NULL,
+  PRIMARY KEY (rid,sid,pid)
+);;
+
+CREATE INDEX IF NOT EXISTS perms_roles_sid_rid_pid ON perms_roles (sid,rid,pid);;
+
+CREATE TABLE IF NOT EXISTS perms_users (
+  uid bigint NOT NULL,
+  sid bigint NOT NULL,
+  pid int NOT NULL,
+  PRIMARY KEY (uid,sid,pid)
+);;
+
+CREATE INDEX IF NOT EXISTS perms_users_sid_uid_pid ON perms_users (sid,uid,pid);;
@@ -0,0 +1,258 @@
+package net.shadowpie.sadiinso.sfc.commands;
+
+import net.dv8tion.jda.api.entities.MessageChannel;
+import net.dv8tion.jda.internal.utils.JDALogger;
+import net.shadowpie.sadiinso.sfc.commands.context.CommandContext;
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Bounded pool executing the commands off the JDA event thread, on platform or virtual threads
+ * <p>
+ * Each command is queued in the lane of its author and in the lane of its channel, it only
+ * starts once it is at the head of both, so that the commands of a user and the commands of a
+ * channel are executed in the order they were received while the others run concurrently.
+ * The lanes are ordered by submission under a single lock, a command can therefore never
+ * wait for a command submitted after it.
+ * </p>
+ * <p>
+ * The number of pending commands is limited globally and per user, the commands above the
+ * limits are rejected.
+ * </p>
+ */
+final class CommandExecutor {
+
+	private static final Logger logger = JDALogger.getLog("CommandExecutor");
+
+	private final ExecutorService pool;
+	private final int maxPending;
+	private final int maxPendingPerUser;
+
+	// guarded by this
+	private final Map<Long, ArrayDeque<Task>> lanes = new HashMap<>();
+	private int pending = 0;
+
+	/**
+	 * @param pool The workers executing the commands
+	 * @param maxPending The maximum number of pending commands
+	 * @param maxPendingPerUser The maximum number of pending commands of a single user
+	 */
+	CommandExecutor(ExecutorService pool, int maxPending, int maxPendingPerUser) {
+		this.pool = pool;
+		this.maxPending = maxPending;
+		this.maxPendingPerUser = maxPendingPerUser;
+	}
+
+	/**
+	 * Return a fixed pool of platform threads
+	 * <p>
+	 * The admission is bounded by the pending counters, the queue of the pool never grows beyond
+	 * the maximum number of pending commands.
+	 * </p>
+	 *
+	 * @param threads The number of threads
+	 */
+	static ExecutorService newPlatformPool(int threads) {
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread th = new Thread(r, "Commands-" + threadCount.incrementAndGet());
+			th.setDaemon(true);
+			return th;
+		});
+
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Return an unbounded pool of platform threads named "prefix-n"
+	 * <p>
+	 * Used for the tasks that can not be queued behind each other: the stages of the streaming
+	 * pipelines, which wait for each other, and the pipelines resumed after an asynchronous
+	 * permission check when the workers are disabled. The number of threads is bounded by the
+	 * pending commands.
+	 * </p>
+	 */
+	static ExecutorService newCachedPool(String prefix) {
+		AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+			Thread th = new Thread(r, prefix + "-" + threadCount.incrementAndGet());
+			th.setDaemon(true);
+			return th;
+		});
+	}
+
+	/**
+	 * Return the executor of the workers, used to resume the commands after an asynchronous step
+	 */
+	Executor workers() {
+		return pool;
+	}
+
+	/**
+	 * Queue the given command
+	 *
+	 * @param ctx The command context
+	 * @param command The command, returning a future completed once the command ends
+	 * @return A future completed with the command end status or null if the command is rejected
+	 */
+	CompletableFuture<Integer> submit(CommandContext ctx, Function<CommandContext, CompletableFuture<Integer>> command) {
+		long user = ctx.getAuthorIdLong();
+		MessageChannel channel = ctx.getChannel();
+		long chan = ((channel == null) ? user : channel.getIdLong());
+
+		Task task = new Task(ctx, command, user, chan);
+		boolean ready;
+
+		synchronized (this) {
+			ArrayDeque<Task> userLane = lanes.get(user);
+			if ((pending >= maxPending) || ((userLane != null) && (userLane.size() >= maxPendingPerUser))) {
+				logger.warn("Rejecting a command, " + pending + " commands pending; user=" + user + "; channel=" + chan);
+				return null;
+			}
+
+			++pending;
+			int heads = enqueue(user, task);
+			if (chan != user) {
+				heads += enqueue(chan, task);
+			}
+
+			task.waiting = task.lanes() - heads;
+			ready = (task.waiting == 0);
+		}
+
+		if (ready) {
+			start(task);
+		}
+
+		return task.result;
+	}
+
+	/**
+	 * Return the number of queued and running commands
+	 */
+	synchronized int pending() {
+		return pending;
+	}
+
+	/**
+	 * Stop the workers, the running commands are not interrupted
+	 */
+	void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Add the given task to the given lane
+	 * @return 1 if the task is the head of the lane, else 0
+	 */
+	private int enqueue(long key, Task task) {
+		ArrayDeque<Task> lane = lanes.computeIfAbsent(key, k -> new ArrayDeque<>(4));
+		lane.addLast(task);
+		return ((lane.size() == 1) ? 1 : 0);
+	}
+
+	/**
+	 * Remove the given task from the head of the given lane
+	 * @return The next task of the lane if it is now ready, else null
+	 */
+	private Task dequeue(long key) {
+		ArrayDeque<Task> lane = lanes.get(key);
+		lane.pollFirst();
+
+		if (lane.isEmpty()) {
+			lanes.remove(key);
+			return null;
+		}
+
+		Task next = lane.peekFirst();
+		return ((--next.waiting == 0) ? next : null);
+	}
+
+	private void start(Task task) {
+		try {
+			pool.execute(() -> run(task));
+		} catch (RejectedExecutionException e) {
+			// the pool is shut down
+			task.result.complete(Commands.COMMAND_ERROR);
+			release(task);
+		}
+	}
+
+	private void run(Task task) {
+		CompletableFuture<Integer> future;
+		try {
+			future = task.command.apply(task.ctx);
+		} catch (Throwable t) {
+			future = CompletableFuture.failedFuture(t);
+		}
+
+		// the lanes are released once the whole command ends, including its asynchronous steps
+		future.whenComplete((status, e) -> {
+			if (e == null) {
+				task.result.complete(status);
+			} else {
+				task.result.completeExceptionally(e);
+			}
+
+			release(task);
+		});
+	}
+
+	private void release(Task task) {
+		Task nextUser;
+		Task nextChan = null;
+
+		synchronized (this) {
+			--pending;
+			nextUser = dequeue(task.user);
+			if (task.chan != task.user) {
+				nextChan = dequeue(task.chan);
+			}
+		}
+
+		if (nextUser != null) {
+			start(nextUser);
+		}
+
+		if ((nextChan != null) && (nextChan != nextUser)) {
+			start(nextChan);
+		}
+	}
+
+	private static final class Task {
+		private final CommandContext ctx;
+		private final Function<CommandContext, CompletableFuture<Integer>> command;
+		private final long user;
+		private final long chan;
+		private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+		// number of lanes the task is not yet the head of, guarded by the executor
+		private int waiting;
+
+		private Task(CommandContext ctx, Function<CommandContext, CompletableFuture<Integer>> command, long user, long chan) {
+			this.ctx = ctx;
+			this.command = command;
+			this.user = user;
+			this.chan = chan;
+		}
+
+		private int lanes() {
+			return ((chan == user) ? 1 : 2);
+		}
+	}
+
+}
@@ -0,0 +1,228 @@
+package net.shadowpie.sadiinso.sfc.commands;
+
+import net.shadowpie.sadiinso.sfc.commands.context.CommandContextFrame;
+import net.shadowpie.sadiinso.sfc.commands.handlers.AbstractCommandHandler;
+import net.shadowpie.sadiinso.sfc.commands.handlers.GroupedCommandHandler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Frozen case-insensitive index of the commands
+ * <p>
+ * The commands names, the aliases and the sub-commands of the groups are stored in a single
+ * character trie, the sub-commands of a group being reached through a separator edge. A whole
+ * "group sub sub" path is then resolved in one pass over the arguments characters, without
+ * lowercase copies, at a cost that only depend on the length of the path.
+ * </p>
+ */
+final class CommandTrie {
+
+	/**
+	 * Returned when no command match the arguments
+	 */
+	static final int NO_MATCH = -1;
+
+	// edge between a group and its sub-commands, can't appear in an argument
+	private static final char SEPARATOR = '\0';
+
+	// the edges of the node n are stored in [edgeStart[n], edgeStart[n + 1]) sorted by char
+	private final int[] edgeStart;
+	private final char[] edgeChars;
+	private final int[] edgeTargets;
+
+	// per node, null if no command end at the node
+	private final AbstractCommandHandler[] handlers;
+	private final AbstractCommandHandler[] roots;
+	private final int[] depths;
+
+	// pipelines resolved against this trie
+	final ConcurrentHashMap<PipelinePlan.Key, PipelinePlan> plans = new ConcurrentHashMap<>();
+
+	private CommandTrie(int nodeCount, int edgeCount) {
+		edgeStart = new int[nodeCount + 1];
+		edgeChars = new char[edgeCount];
+		edgeTargets = new int[edgeCount];
+		handlers = new AbstractCommandHandler[nodeCount];
+		roots = new AbstractCommandHandler[nodeCount];
+		depths = new int[nodeCount];
+	}
+
+	/**
+	 * Return an empty trie
+	 */
+	static CommandTrie empty() {
+		return build(Collections.emptyMap(), Collections.emptyMap());
+	}
+
+	/**
+	 * Build the trie of the given commands
+	 *
+	 * @param commands The top level commands and groups by name
+	 * @param aliases The commands by alias, the aliases take precedence over the names
+	 */
+	static CommandTrie build(Map<String, AbstractCommandHandler> commands, Map<String, AbstractCommandHandler> aliases) {
+		BuildNode root = new BuildNode();
+		for (Map.Entry<String, AbstractCommandHandler> entry : commands.entrySet()) {
+			insert(root, entry.getKey(), entry.getValue(), entry.getValue(), 1);
+		}
+
+		for (Map.Entry<String, AbstractCommandHandler> entry : aliases.entrySet()) {
+			insert(root, entry.getKey(), entry.getValue(), entry.getValue(), 1);
+		}
+
+		// number the nodes breadth first so that the edges of each node are contiguous
+		List<BuildNode> nodes = new ArrayList<>();
+		ArrayDeque<BuildNode> queue = new ArrayDeque<>();
+		int edgeCount = 0;
+
+		queue.add(root);
+		while (!queue.isEmpty()) {
+			BuildNode node = queue.poll();
+			node.id = nodes.size();
+			nodes.add(node);
+			edgeCount += node.children.size();
+			queue.addAll(node.children.values());
+		}
+
+		CommandTrie trie = new CommandTrie(nodes.size(), edgeCount);
+		int edge = 0;
+		for (BuildNode node : nodes) {
+			trie.edgeStart[node.id] = edge;
+			trie.handlers[node.id] = node.handler;
+			trie.roots[node.id] = node.root;
+			trie.depths[node.id] = node.depth;
+
+			for (Map.Entry<Character, BuildNode> child : node.children.entrySet()) {
+				trie.edgeChars[edge] = child.getKey();
+				trie.edgeTargets[edge] = child.getValue().id;
+				++edge;
+			}
+		}
+
+		trie.edgeStart[nodes.size()] = edge;
+		return trie;
+	}
+
+	/**
+	 * Return the node of the deepest command matched by the given arguments
+	 * <p>
+	 * The sub-commands of a group are looked up in the following arguments, the resolution stops
+	 * at the first command that is not a group or at the first unknown sub-command.
+	 * </p>
+	 *
+	 * @param args The command arguments
+	 * @return The node or {@link #NO_MATCH}
+	 */
+	int resolve(CommandContextFrame args) {
+		int match = NO_MATCH;
+		int node = 0;
+
+		for (int t = 0, argc = args.argc(); t < argc; t++) {
+			if (t > 0) {
+				node = child(node, SEPARATOR);
+				if (node == NO_MATCH) {
+					break;
+				}
+			}
+
+			int len = args.length(t);
+			for (int c = 0; (c < len) && (node != NO_MATCH); c++) {
+				char ch = args.charAt(t, c);
+				node = ((ch == SEPARATOR) ? NO_MATCH : child(node, fold(ch)));
+			}
+
+			if ((node == NO_MATCH) || (handlers[node] == null)) {
+				break;
+			}
+
+			match = node;
+			if (!(handlers[node] instanceof GroupedCommandHandler)) {
+				break;
+			}
+		}
+
+		return match;
+	}
+
+	/**
+	 * Return the command of the given node
+	 */
+	AbstractCommandHandler handler(int node) {
+		return handlers[node];
+	}
+
+	/**
+	 * Return the top level command or group of the given node
+	 */
+	AbstractCommandHandler root(int node) {
+		return roots[node];
+	}
+
+	/**
+	 * Return the number of arguments consumed to reach the given node
+	 */
+	int depth(int node) {
+		return depths[node];
+	}
+
+	private int child(int node, char ch) {
+		int low = edgeStart[node];
+		int high = edgeStart[node + 1] - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char c = edgeChars[mid];
+
+			if (c < ch) {
+				low = mid + 1;
+			} else if (c > ch) {
+				high = mid - 1;
+			} else {
+				return edgeTargets[mid];
+			}
+		}
+
+		return NO_MATCH;
+	}
+
+	// locale independent, the names are registered folded with Locale.ROOT
+	private static char fold(char ch) {
+		if (ch < 128) {
+			return (((ch >= 'A') && (ch <= 'Z')) ? (char) (ch + 32) : ch);
+		}
+
+		return Character.toLowerCase(ch);
+	}
+
+	private static void insert(BuildNode node, String key, AbstractCommandHandler handler, AbstractCommandHandler root, int depth) {
+		for (int t = 0; t < key.length(); t++) {
+			node = node.children.computeIfAbsent(fold(key.charAt(t)), c -> new BuildNode());
+		}
+
+		node.handler = handler;
+		node.root = root;
+		node.depth = depth;
+
+		if (handler instanceof GroupedCommandHandler) {
+			BuildNode subs = node.children.computeIfAbsent(SEPARATOR, c -> new BuildNode());
+			for (Map.Entry<String, AbstractCommandHandler> sub : ((GroupedCommandHandler) handler).subCommands.entrySet()) {
+				insert(subs, sub.getKey(), sub.getValue(), root, depth + 1);
+			}
+		}
+	}
+
+	private static final class BuildNode {
+		private final TreeMap<Character, BuildNode> children = new TreeMap<>();
+		private AbstractCommandHandler handler;
+		private AbstractCommandHandler root;
+		private int depth;
+		private int id;
+	}
+
+}
@@ -2,23 +2,32 @@ package net.shadowpie.sadiinso.sfc.commands;
 
 import net.dv8tion.jda.internal.utils.JDALogger;
 import net.shadowpie.sadiinso.sfc.commands.context.CommandContext;
+import net.shadowpie.sadiinso.sfc.commands.context.CommandContextFrame;
 import net.shadowpie.sadiinso.sfc.commands.context.ContextOrigin;
+import net.shadowpie.sadiinso.sfc.commands.context.PipelineStages;
 import net.shadowpie.sadiinso.sfc.commands.declaration.SFCommand;
 import net.shadowpie.sadiinso.sfc.commands.declaration.SFCommandHelper;
 import net.shadowpie.sadiinso.sfc.commands.handlers.ASFCommandHandler;
 import net.shadowpie.sadiinso.sfc.commands.handlers.AbstractCommandHandler;
+import net.shadowpie.sadiinso.sfc.commands.handlers.CommandMetrics;
 import net.shadowpie.sadiinso.sfc.commands.handlers.GroupedCommandHandler;
 import net.shadowpie.sadiinso.sfc.config.ASFConfig;
 import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.config.SFConfig.Config;
 import net.shadowpie.sadiinso.sfc.permissions.OriginPerms;
 import net.shadowpie.sadiinso.sfc.permissions.Permissions;
+import net.shadowpie.sadiinso.sfc.sfc.SFC;
 import net.shadowpie.sadiinso.sfc.utils.SFUtils;
+import net.shadowpie.sadiinso.sfc.utils.VirtualThreads;
 import org.slf4j.Logger;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 public final class Commands {
@@ -27,12 +36,16 @@ public final class Commands {
 	public static final int COMMAND_NOT_FOUND = 1;
 	public static final int COMMAND_ERROR = 2;
 	public static final int COMMAND_PERM_ERROR = 3;
+	public static final int COMMAND_BUSY = 4;
+	public static final int COMMAND_RATE_LIMITED = 5;
 	
 	public static final String err_cmd_not_found = "Command not found";
 	public static final String err_no_private = "This command cannot be executed in a private channel";
 	public static final String err_no_server = "This command cannot be executed on a server";
 	public static final String err_no_console = "This command cannot be executed on the console";
 	public static final String err_no_perm = "You need to have permission \"%perm\" to execute this command";
+	public static final String err_busy = "Too many commands are pending, try again later";
+	public static final String err_rate_limited = "The command \"%cmd\" is used too often, try again in %delay seconds";
 	private static final Pattern PERM_SPLIT = Pattern.compile(",\\s*");
 	
 	// Suppresses default constructor, ensuring non-instantiability.
@@ -40,6 +53,20 @@ public final class Commands {
 
 	private static final Map<String, AbstractCommandHandler> commands = new HashMap<>();
 	private static final Map<String, AbstractCommandHandler> aliases = new HashMap<>();
+	
+	// frozen index of the commands and aliases, built by init()
+	private static CommandTrie trie = CommandTrie.empty();
+	
+	// null if the commands are executed on the calling thread, built by init()
+	private static volatile CommandExecutor executor;
+	
+	// resumes the pipelines when the workers are disabled, built on first use
+	private static volatile Executor resumeExecutor;
+	
+	// null if the streaming pipelines are disabled, built by init()
+	private static volatile ExecutorService stageExecutor;
+	private static int stageQueue;
+	private static final int STAGE_SKIPPED = -1;
 	private static final Logger logger = JDALogger.getLog("Commands");
 
 	private static int finalCommandsNumber = 0;
@@ -70,15 +97,136 @@ public final class Commands {
 	 * execution.</li>
 	 * <li>{@link Commands#COMMAND_PERM_ERROR} if the user does not have the
 	 * permissions required to execute the command.</li>
+	 * <li>{@link Commands#COMMAND_RATE_LIMITED} if a command of the pipeline
+	 * is on cooldown.</li>
 	 * </ul>
+	 * <p>
+	 * The pipeline is executed on the calling thread, bypassing the commands queues. The calling
+	 * thread waits for the permissions if they are verified asynchronously.
+	 * </p>
 	 * 
 	 * @param ctx The command context to execute
 	 * @return The command end status
 	 */
 	public static int execute(CommandContext ctx) {
+		PipelinePlan plan = PipelinePlan.of(trie, ctx.pipelineFrames());
+		int status = checkRateLimits(ctx, plan);
+		if (status != COMMAND_SUCCESS) {
+			return status;
+		}
+		
+		try {
+			status = checkPipelinePerms(ctx, plan).join();
+			return ((status == COMMAND_SUCCESS) ? executePipeline(ctx, plan, true) : status);
+		} catch (Exception e) {
+			logger.error("Error while executing a command pipeline", e);
+			return COMMAND_ERROR;
+		}
+	}
+	
+	/**
+	 * Queue a command pipeline for execution by the commands workers
+	 * <p>
+	 * The commands of a same user or of a same channel are executed in the order they are queued,
+	 * when too many commands are pending the pipeline is rejected with {@link Commands#COMMAND_BUSY}.
+	 * Each command runs on its own virtual thread if "virtual_threads" is enabled. If the workers
+	 * are disabled ("command_threads" set to 0), the pipeline is executed on the calling thread, or
+	 * on a fallback thread when the permissions are verified asynchronously.
+	 * </p>
+	 * 
+	 * @param ctx The command context to execute
+	 * @return A future completed with the command end status (see {@link Commands#execute(CommandContext)})
+	 */
+	public static CompletableFuture<Integer> executeAsync(CommandContext ctx) {
+		PipelinePlan plan = PipelinePlan.of(trie, ctx.pipelineFrames());
+		
+		// the rate limits are checked first so that the rejected commands never reach the queues or the database
+		int status = checkRateLimits(ctx, plan);
+		if (status != COMMAND_SUCCESS) {
+			return CompletableFuture.completedFuture(status);
+		}
+		
+		CommandExecutor exec = executor;
+		if (exec == null) {
+			// never block the calling thread, the pipeline is not streamed
+			return executeNow(ctx, plan, resumeExecutor(), false);
+		}
+		
+		CompletableFuture<Integer> res = exec.submit(ctx, c -> executeNow(c, plan, exec.workers(), true));
+		if (res == null) {
+			// a saturated pipeline is not put on cooldown
+			releaseRateLimits(ctx, plan, plan.limited.length);
+			ctx.warn(err_busy);
+			return CompletableFuture.completedFuture(COMMAND_BUSY);
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Return the executor resuming the pipelines after an asynchronous permission check when the
+	 * workers are disabled, the permissions pool is sized for the database and must not run commands
+	 */
+	private static Executor resumeExecutor() {
+		Executor res = resumeExecutor;
+		if (res == null) {
+			synchronized (Commands.class) {
+				if (resumeExecutor == null) {
+					ExecutorService pool = CommandExecutor.newCachedPool("Commands-Resume");
+					SFC.addShutdownHook(pool::shutdown);
+					resumeExecutor = pool;
+				}
+				
+				res = resumeExecutor;
+			}
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Return the number of commands queued or running on the commands workers
+	 */
+	public static int pending() {
+		CommandExecutor exec = executor;
+		return ((exec == null) ? 0 : exec.pending());
+	}
+	
+	/**
+	 * Verify the permissions then execute the pipeline
+	 * @param ctx The command context to execute
+	 * @param plan The resolved pipeline
+	 * @param resume The executor resuming the pipeline if the permissions are verified asynchronously, never the permissions pool
+	 * @param stream Whether the pipeline can be executed as concurrent stages, blocking the thread executing the first command
+	 */
+	private static CompletableFuture<Integer> executeNow(CommandContext ctx, PipelinePlan plan, Executor resume, boolean stream) {
+		CompletableFuture<Integer> perms = checkPipelinePerms(ctx, plan);
+		Function<Integer, Integer> pipeline = (status -> ((status == COMMAND_SUCCESS) ? executePipeline(ctx, plan, stream) : status));
+		
+		CompletableFuture<Integer> res = (perms.isDone() ? perms.thenApply(pipeline) : perms.thenApplyAsync(pipeline, resume));
+		return res.exceptionally(e -> {
+			logger.error("Error while executing a command pipeline", e);
+			return COMMAND_ERROR;
+		});
+	}
+	
+	private static int executePipeline(CommandContext ctx, PipelinePlan plan, boolean stream) {
+		// the origins are verified once if all the stages accept the context origin
+		boolean checkOrigins = !plan.accepts(ctx.getOrigin());
+		
+		ExecutorService stages = stageExecutor;
+		if (stream && plan.streams && (stages != null)) {
+			CommandContext[] contexts = PipelineStages.split(ctx, plan.streaming, stageQueue);
+			if (contexts != null) {
+				return executeStages(contexts, plan, checkOrigins, stages);
+			}
+		}
+		
+		int stage = 0;
 		int status;
+		
 		do {
-			status = executeInternal(ctx);
+			status = executeInternal(ctx, plan, stage++, checkOrigins);
 			
 			if((status != COMMAND_SUCCESS) || ctx.hasFlag(CommandContext.FLAG_BREAK_PIPELINE)) {
 				break;
@@ -89,25 +237,199 @@ public final class Commands {
 	}
 	
 	/**
-	 * Execute the given command
+	 * Execute the pipeline as concurrent stages
+	 * <p>
+	 * The streaming commands are started at once and read the output of the previous command as
+	 * it is written, the other commands are started once the previous command ends. A failure or a
+	 * pipeline break ends the input of the next command, the commands that are not started yet are
+	 * skipped.
+	 * </p>
+	 * @param stages The context of each command, the first one is executed on the calling thread
+	 * @param plan The resolved pipeline
+	 * @param checkOrigins Whether the origin permissions of each stage must be verified
+	 * @param exec The executor of the other stages
+	 * @return The status of the first failed command or of the last command
+	 */
+	private static int executeStages(CommandContext[] stages, PipelinePlan plan, boolean checkOrigins, ExecutorService exec) {
+		int[] statuses = new int[stages.length];
+		CompletableFuture<Void> first = new CompletableFuture<>();
+		List<CompletableFuture<Void>> done = new ArrayList<>(stages.length);
+		done.add(first);
+		
+		for (int t = 1; t < stages.length; t++) {
+			int stage = t;
+			Runnable run = () -> executeStage(stages, plan, stage, checkOrigins, statuses);
+			done.add(plan.streaming[t] ? CompletableFuture.runAsync(run, exec) : done.get(t - 1).thenRunAsync(run, exec));
+		}
+		
+		executeStage(stages, plan, 0, checkOrigins, statuses);
+		first.complete(null);
+		CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0])).join();
+		
+		int status = COMMAND_SUCCESS;
+		for (int t = 0; (t < stages.length) && (statuses[t] != STAGE_SKIPPED); t++) {
+			status = statuses[t];
+			if (status != COMMAND_SUCCESS) {
+				break;
+			}
+		}
+		
+		return status;
+	}
+	
+	private static void executeStage(CommandContext[] stages, PipelinePlan plan, int stage, boolean checkOrigins, int[] statuses) {
+		CommandContext ctx = stages[stage];
+		
+		// the previous command ended before this one started
+		if ((stage > 0) && !plan.streaming[stage]
+				&& ((statuses[stage - 1] != COMMAND_SUCCESS) || stages[stage - 1].hasFlag(CommandContext.FLAG_BREAK_PIPELINE))) {
+			statuses[stage] = STAGE_SKIPPED;
+			PipelineStages.finish(ctx, true);
+			return;
+		}
+		
+		int status;
+		try {
+			status = executeInternal(ctx, plan, stage, checkOrigins);
+		} catch (Exception e) {
+			logger.error("Error while executing a pipeline stage", e);
+			status = COMMAND_ERROR;
+		}
+		
+		statuses[stage] = status;
+		PipelineStages.finish(ctx, (status != COMMAND_SUCCESS) || ctx.hasFlag(CommandContext.FLAG_BREAK_PIPELINE));
+	}
+	
+	/**
+	 * Take a token from the rate limiter of each command of the pipeline, the tokens are given
+	 * back if a command is on cooldown so that a rejected pipeline consumes nothing
+	 * @param ctx The command context
+	 * @param plan The resolved pipeline
+	 * @return {@link Commands#COMMAND_SUCCESS} or {@link Commands#COMMAND_RATE_LIMITED} if a command is on cooldown
+	 */
+	private static int checkRateLimits(CommandContext ctx, PipelinePlan plan) {
+		if ((plan.limited.length == 0) || isRateLimitExempt(ctx)) {
+			return COMMAND_SUCCESS;
+		}
+		
+		for (int t = 0; t < plan.limited.length; t++) {
+			AbstractCommandHandler handler = plan.limited[t];
+			long wait = handler.rateLimiter.acquire(rateLimitKey(ctx, handler.rateLimiter));
+			if (wait > 0) {
+				releaseRateLimits(ctx, plan, t);
+				handler.metrics.record(COMMAND_RATE_LIMITED);
+				ctx.warn(err_rate_limited.replace("%cmd", handler.name).replace("%delay", String.format("%.1f", wait / 1e9)));
+				return COMMAND_RATE_LIMITED;
+			}
+		}
+		
+		return COMMAND_SUCCESS;
+	}
+	
+	/**
+	 * Give back the tokens taken by {@link #checkRateLimits(CommandContext, PipelinePlan)} for a pipeline that is not executed
+	 * @param ctx The command context
+	 * @param plan The resolved pipeline
+	 * @param count The number of rate limited commands whose token was taken
+	 */
+	private static void releaseRateLimits(CommandContext ctx, PipelinePlan plan, int count) {
+		if ((count == 0) || isRateLimitExempt(ctx)) {
+			return;
+		}
+		
+		for (int t = 0; t < count; t++) {
+			RateLimiter limiter = plan.limited[t].rateLimiter;
+			limiter.release(rateLimitKey(ctx, limiter));
+		}
+	}
+	
+	private static boolean isRateLimitExempt(CommandContext ctx) {
+		long uid = ctx.getAuthorIdLong();
+		return ((ctx.getOrigin() == ContextOrigin.CONSOLE) || (uid == SFConfig.owner_lid()) || (uid == SFC.getSelfUserIdLong()));
+	}
+	
+	private static long rateLimitKey(CommandContext ctx, RateLimiter limiter) {
+		return (((limiter.scope() == RateLimiter.GUILD) && (ctx.getOrigin() == ContextOrigin.SERVER)) ? ctx.getGuild().getIdLong() : ctx.getAuthorIdLong());
+	}
+	
+	/**
+	 * Verify at once the permissions required by all the commands of the pipeline
+	 * @param ctx The command context
+	 * @param plan The resolved pipeline
+	 * @return A future completed with {@link Commands#COMMAND_SUCCESS} or {@link Commands#COMMAND_PERM_ERROR} if a permission is missing
+	 */
+	private static CompletableFuture<Integer> checkPipelinePerms(CommandContext ctx, PipelinePlan plan) {
+		if (ctx.getOrigin() != ContextOrigin.SERVER) {
+			return CompletableFuture.completedFuture(COMMAND_SUCCESS);
+		}
+		
+		long uid = ctx.getAuthorIdLong();
+		if ((uid == SFConfig.owner_lid()) || (uid == SFC.getSelfUserIdLong())) {
+			return CompletableFuture.completedFuture(COMMAND_SUCCESS);
+		}
+		
+		if (plan.chains.length == 0) {
+			ctx.setPermsChecked();
+			return CompletableFuture.completedFuture(COMMAND_SUCCESS);
+		}
+		
+		long start = System.nanoTime();
+		return Permissions.hasPermsAsync(ctx.getGuild().getIdLong(), uid, plan.chains).thenApply(granted -> {
+			ctx.setPermTime(System.nanoTime() - start);
+			
+			int missing = granted.nextClearBit(0);
+			if (missing < plan.chains.length) {
+				AbstractCommandHandler owner = plan.permOwners[missing];
+				owner.metrics.permission().record(ctx.getPermTime());
+				owner.metrics.record(COMMAND_PERM_ERROR);
+				ctx.warn(err_no_perm.replace("%perm", plan.perms[missing]));
+				return COMMAND_PERM_ERROR;
+			}
+			
+			ctx.setPermsChecked();
+			return COMMAND_SUCCESS;
+		});
+	}
+	
+	/**
+	 * Execute the given stage of the pipeline
 	 * @param ctx The command
+	 * @param plan The resolved pipeline
+	 * @param stage The index of the current command in the pipeline
+	 * @param checkOrigins Whether the origin permissions of the stage must be verified
 	 * @return The command end status
 	 */
-	private static int executeInternal(CommandContext ctx) {
-		String prefix = ctx.prefix().toLowerCase();
-		AbstractCommandHandler handler = aliases.get(prefix);
-		
-		if (handler == null) {
-			handler = commands.get(prefix);
+	private static int executeInternal(CommandContext ctx, PipelinePlan plan, int stage, boolean checkOrigins) {
+		int node = plan.nodes[stage];
+		if (node == CommandTrie.NO_MATCH) {
+			return COMMAND_NOT_FOUND;
 		}
 
-		if (handler == null) {
-			return COMMAND_NOT_FOUND;
+		AbstractCommandHandler handler = plan.handlers[stage];
+		if (checkOrigins) {
+			int status = checkOrigin(ctx, handler, plan.trie.root(node).originPerms);
+			if (status != COMMAND_SUCCESS) {
+				return status;
+			}
 		}
 
+		int code = execute(handler, ctx.pullPrefix(plan.trie.depth(node)));
+		if(code == COMMAND_ERROR) {
+			ctx.notifyFailure();
+		}
+		
+		return code;
+	}
+	
+	/**
+	 * Verify the origin permissions of a command
+	 * @param ctx The command context
+	 * @param handler The command
+	 * @param perms The origin permissions, those of the top level command or group
+	 * @return {@link Commands#COMMAND_SUCCESS} or the status ending the pipeline
+	 */
+	private static int checkOrigin(CommandContext ctx, AbstractCommandHandler handler, byte perms) {
 		ContextOrigin origin = ctx.getOrigin();
-		byte perms = handler.originPerms;
-
 		long uid = ctx.getAuthorIdLong();
 		long ownerid = SFConfig.owner_lid();
 		
@@ -119,29 +441,48 @@ public final class Commands {
 		// verify origin permissions
 		if (origin == ContextOrigin.CONSOLE) { // emulated context (console)
 			if (!OriginPerms.has(perms, OriginPerms.CONSOLE)) {
+				handler.metrics.record(COMMAND_PERM_ERROR);
 				ctx.warn(err_no_console);
 				return COMMAND_PERM_ERROR;
 			}
 		} else if (origin == ContextOrigin.PRIVATE) { // pm context
 			if (!OriginPerms.has(perms, OriginPerms.PRIVATE)) {
+				handler.metrics.record(COMMAND_PERM_ERROR);
 				ctx.warn(err_no_private);
 				return COMMAND_PERM_ERROR;
 			}
 		} else if (origin == ContextOrigin.SERVER) { // server context
 			if (!OriginPerms.has(perms, OriginPerms.SERVER)) {
+				handler.metrics.record(COMMAND_PERM_ERROR);
 				ctx.warn(err_no_server);
 				return COMMAND_PERM_ERROR;
 			}
 		}
+		
+		return COMMAND_SUCCESS;
+	}
 
-		int code = handler.execute(ctx.pullPrefix());
-		if(code == COMMAND_ERROR) {
-			ctx.notifyFailure();
+	/**
+	 * Execute the given handler and record its metrics
+	 * @param handler The resolved command
+	 * @param ctx The command context, without the command path
+	 * @return The command end status
+	 */
+	private static int execute(AbstractCommandHandler handler, CommandContext ctx) {
+		CommandMetrics metrics = handler.metrics;
+		if (ctx.getParseTime() >= 0) {
+			metrics.parse().record(ctx.getParseTime());
 		}
 		
+		if ((handler.perms != null) && (ctx.getPermTime() >= 0)) {
+			metrics.permission().record(ctx.getPermTime());
+		}
+		
+		int code = handler.execute(ctx);
+		metrics.record(code);
 		return code;
 	}
-
+	
 	/**
 	 * Find a command by path
 	 * 
@@ -243,7 +584,7 @@ public final class Commands {
 
 			parent.addCommandHandler(group);
 		} else {
-			commands.put(split[0], group);
+			commands.put(split[0].toLowerCase(Locale.ROOT), group);
 		}
 	}
 
@@ -279,6 +620,43 @@ public final class Commands {
 			
 			commandsToAdd = null;
 		}
+		
+		trie = CommandTrie.build(commands, aliases);
+		
+		// start the commands workers, a virtual thread per command if enabled
+		if (executor != null) {
+			return;
+		}
+		
+		int threads = SFConfig.sfConfig.getInt("command_threads", Runtime.getRuntime().availableProcessors());
+		int maxPendingPerUser = SFConfig.sfConfig.getInt("command_queue_per_user", 8);
+		ExecutorService virtual = ((threads > 0) && VirtualThreads.isEnabled()) ? VirtualThreads.newPerTaskExecutor("Commands") : null;
+		CommandExecutor exec;
+		
+		if (threads <= 0) {
+			logger.info("Commands workers disabled, the commands are executed on the JDA event thread or resumed on a fallback thread after an asynchronous permission check");
+			return;
+		} else if (virtual != null) {
+			exec = new CommandExecutor(virtual, SFConfig.sfConfig.getInt("command_queue", 16384), maxPendingPerUser);
+			logger.info("Commands executed on virtual threads");
+		} else {
+			exec = new CommandExecutor(CommandExecutor.newPlatformPool(threads), SFConfig.sfConfig.getInt("command_queue", 1024), maxPendingPerUser);
+		}
+		
+		SFC.addShutdownHook(exec::shutdown);
+		executor = exec;
+		
+		// the stages of the streaming pipelines run on their own threads
+		if (SFConfig.sfConfig.getBool("pipeline_streaming", false)) {
+			ExecutorService stages = (VirtualThreads.isEnabled() ? VirtualThreads.newPerTaskExecutor("Pipeline") : null);
+			if (stages == null) {
+				stages = CommandExecutor.newCachedPool("Pipeline");
+			}
+			
+			SFC.addShutdownHook(stages::shutdown);
+			stageQueue = Math.max(1, SFConfig.sfConfig.getInt("pipeline_queue", 16));
+			stageExecutor = stages;
+		}
 	}
 
 	private static void addCommandsInternal(Class<?> clazz) {
@@ -365,12 +743,12 @@ public final class Commands {
 
 			group.addCommandHandler(handler);
 		} else {
-			commands.put(a.name().toLowerCase(), handler);
+			commands.put(a.name().toLowerCase(Locale.ROOT), handler);
 		}
 
 		// add alias
 		if (!a.alias().isEmpty()) {
-			aliases.put(a.alias().toLowerCase(), handler);
+			aliases.put(a.alias().toLowerCase(Locale.ROOT), handler);
 		}
 
 		++finalCommandsNumber;
@@ -0,0 +1,167 @@
+package net.shadowpie.sadiinso.sfc.commands;
+
+import net.shadowpie.sadiinso.sfc.commands.context.CommandContextFrame;
+import net.shadowpie.sadiinso.sfc.commands.context.ContextOrigin;
+import net.shadowpie.sadiinso.sfc.commands.handlers.AbstractCommandHandler;
+import net.shadowpie.sadiinso.sfc.permissions.OriginPerms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolved command pipeline
+ * <p>
+ * A plan holds the command of each stage of a pipeline, the origins accepted by all the stages,
+ * the permissions required by the whole pipeline and the stages to rate limit. The plans are
+ * cached by {@link CommandTrie} node sequence, which identifies the command path of each stage,
+ * so that the chains used again and again are only resolved once.
+ * </p>
+ */
+final class PipelinePlan {
+
+	private static final int MAX_CACHED = 1024;
+
+	private static final AbstractCommandHandler[] NO_HANDLERS = new AbstractCommandHandler[0];
+
+	// the index the nodes belong to
+	final CommandTrie trie;
+
+	// per stage, NO_MATCH if the stage is not a command
+	final int[] nodes;
+	final AbstractCommandHandler[] handlers;
+
+	// origins accepted by every stage, and whether a stage is reserved to the owner
+	final byte origins;
+	final boolean ownerOnly;
+
+	// permissions required by the pipeline and the command requiring each of them
+	final String[] perms;
+	final int[][] chains;
+	final AbstractCommandHandler[] permOwners;
+
+	// the rate limited stages, in order
+	final AbstractCommandHandler[] limited;
+
+	// per stage, whether the command reads its input chunk by chunk, and whether any but the first does
+	final boolean[] streaming;
+	final boolean streams;
+
+	private PipelinePlan(CommandTrie trie, int[] nodes) {
+		this.trie = trie;
+		this.nodes = nodes;
+		this.handlers = new AbstractCommandHandler[nodes.length];
+		this.streaming = new boolean[nodes.length];
+
+		byte origins = OriginPerms.ALL;
+		boolean ownerOnly = false;
+		boolean streams = false;
+		List<String> perms = new ArrayList<>();
+		List<int[]> chains = new ArrayList<>();
+		List<AbstractCommandHandler> permOwners = new ArrayList<>();
+		List<AbstractCommandHandler> limited = new ArrayList<>();
+
+		for (int t = 0; t < nodes.length; t++) {
+			if (nodes[t] == CommandTrie.NO_MATCH) {
+				continue;
+			}
+
+			AbstractCommandHandler handler = trie.handler(nodes[t]);
+			byte rootPerms = trie.root(nodes[t]).originPerms;
+			handlers[t] = handler;
+			origins &= rootPerms;
+			ownerOnly |= OriginPerms.has(rootPerms, OriginPerms.OWNER_ONLY);
+
+			if (handler.perms != null) {
+				Collections.addAll(perms, handler.perms);
+				Collections.addAll(chains, handler.permChains);
+				for (int p = 0; p < handler.perms.length; p++) {
+					permOwners.add(handler);
+				}
+			}
+
+			if (handler.rateLimiter != null) {
+				limited.add(handler);
+			}
+
+			streaming[t] = handler.streaming;
+			streams |= ((t > 0) && handler.streaming);
+		}
+
+		this.origins = origins;
+		this.ownerOnly = ownerOnly;
+		this.streams = streams;
+		this.perms = perms.toArray(String[]::new);
+		this.chains = chains.toArray(int[][]::new);
+		this.permOwners = permOwners.toArray(NO_HANDLERS);
+		this.limited = limited.toArray(NO_HANDLERS);
+	}
+
+	/**
+	 * Return the plan of the given pipeline
+	 *
+	 * @param trie The commands index
+	 * @param frames The arguments of each stage of the pipeline
+	 */
+	static PipelinePlan of(CommandTrie trie, CommandContextFrame[] frames) {
+		int[] nodes = new int[frames.length];
+		for (int t = 0; t < frames.length; t++) {
+			nodes[t] = trie.resolve(frames[t]);
+		}
+
+		Key key = new Key(nodes);
+		ConcurrentHashMap<Key, PipelinePlan> cache = trie.plans;
+
+		PipelinePlan plan = cache.get(key);
+		if (plan == null) {
+			plan = new PipelinePlan(trie, nodes);
+			if (cache.size() >= MAX_CACHED) {
+				cache.clear();
+			}
+
+			cache.put(key, plan);
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Return the number of stages
+	 */
+	int length() {
+		return nodes.length;
+	}
+
+	/**
+	 * Return whether every stage accepts the given origin without further checks
+	 */
+	boolean accepts(ContextOrigin origin) {
+		return (!ownerOnly && OriginPerms.has(origins, OriginPerms.CO2OP(origin)));
+	}
+
+	/**
+	 * Sequence of trie nodes of a pipeline
+	 */
+	static final class Key {
+		private final int[] nodes;
+		private final int hash;
+
+		Key(int[] nodes) {
+			this.nodes = nodes;
+			this.hash = Arrays.hashCode(nodes);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return ((obj instanceof Key) && Arrays.equals(nodes, ((Key) obj).nodes));
+		}
+	}
+
+}
@@ -0,0 +1,312 @@
+package net.shadowpie.sadiinso.sfc.commands;
+
+import net.shadowpie.sadiinso.sfc.commands.declaration.SFCommand;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-free token buckets of a command
+ * <p>
+ * Each bucket is stored as a single long, the time at which it will be full again (generic cell
+ * rate algorithm), and is updated with a single CAS. The buckets are kept in an open addressing
+ * table keyed by the user or guild id, the full buckets are swept when the table fills up. The
+ * slots of a table being swept are frozen, the updates wait for the sweep and are applied to the
+ * new table.
+ * </p>
+ */
+public final class RateLimiter {
+
+	/**
+	 * One bucket per user
+	 */
+	public static final byte USER = 0;
+
+	/**
+	 * One bucket per guild, the private channels are limited per user
+	 */
+	public static final byte GUILD = 1;
+
+	/**
+	 * A single bucket for everyone
+	 */
+	public static final byte GLOBAL = 2;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// the times are relative to this origin so that an empty slot (0) is a full bucket
+	private static final long ORIGIN = System.nanoTime();
+
+	// value of the slots already copied by a sweep
+	private static final long FROZEN = Long.MIN_VALUE;
+
+	private final byte scope;
+	private final long interval;// nanos to refill one token
+	private final long tolerance;// nanos of tokens in a full bucket
+
+	private final AtomicLong global = new AtomicLong();
+	private final ReentrantLock sweeping = new ReentrantLock();
+	private volatile Table table = new Table(INITIAL_CAPACITY);
+
+	/**
+	 * @param scope The scope of the buckets ({@link #USER}, {@link #GUILD} or {@link #GLOBAL})
+	 * @param cooldown The time to refill one token in milliseconds
+	 * @param burst The number of tokens of a full bucket
+	 */
+	public RateLimiter(byte scope, long cooldown, int burst) {
+		this.scope = scope;
+		this.interval = TimeUnit.MILLISECONDS.toNanos(cooldown);
+		this.tolerance = interval * Math.max(1, burst);
+	}
+
+	/**
+	 * Return the limiter declared by the given annotation or null if the command is not limited
+	 */
+	public static RateLimiter of(SFCommand inf) {
+		return ((inf.cooldown() <= 0) ? null : new RateLimiter(inf.cooldownScope(), inf.cooldown(), inf.burst()));
+	}
+
+	/**
+	 * Return the scope of the buckets
+	 */
+	public byte scope() {
+		return scope;
+	}
+
+	/**
+	 * Take a token from the bucket of the given key
+	 *
+	 * @param key The user or guild id, ignored for the {@link #GLOBAL} scope
+	 * @return 0 if a token was taken, else the time in nanoseconds before the next token
+	 */
+	public long acquire(long key) {
+		long now = System.nanoTime() - ORIGIN;
+		if (scope == GLOBAL) {
+			return acquire(global, now);
+		}
+
+		while (true) {
+			Table t = table;
+			int slot = t.slot(key);
+			if (slot < 0) {
+				// the table is full, sweep it (or wait for the sweep in progress) and retry
+				sweep(t, now, true);
+				continue;
+			}
+
+			if ((t.size.get() << 1) > t.capacity()) {
+				sweep(t, now, false);
+			}
+
+			long tat;
+			long next;
+			do {
+				tat = t.tats.get(slot);
+				if (tat == FROZEN) {
+					break;
+				}
+
+				next = Math.max(tat, now) + interval;
+				if (next - now > tolerance) {
+					return (next - now - tolerance);
+				}
+			} while (!t.tats.compareAndSet(slot, tat, next));
+
+			if (tat != FROZEN) {
+				return 0;
+			}
+
+			// the slot was copied by a sweep, retry on the new table
+			awaitSweep();
+		}
+	}
+
+	/**
+	 * Give back a token taken by {@link #acquire(long)}, used when the command is finally not executed
+	 *
+	 * @param key The key given to {@link #acquire(long)}
+	 */
+	public void release(long key) {
+		if (scope == GLOBAL) {
+			global.addAndGet(-interval);
+			return;
+		}
+
+		while (true) {
+			// the bucket may have been swept (full again), there is nothing to give back then
+			Table t = table;
+			int slot = t.find(key);
+			if (slot < 0) {
+				return;
+			}
+
+			long tat = t.tats.get(slot);
+			if (tat == FROZEN) {
+				awaitSweep();
+			} else if (t.tats.compareAndSet(slot, tat, tat - interval)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Return the number of tracked buckets
+	 */
+	public int size() {
+		return table.size.get();
+	}
+
+	private long acquire(AtomicLong bucket, long now) {
+		long tat;
+		long next;
+		do {
+			tat = bucket.get();
+			next = Math.max(tat, now) + interval;
+			if (next - now > tolerance) {
+				return (next - now - tolerance);
+			}
+		} while (!bucket.compareAndSet(tat, next));
+
+		return 0;
+	}
+
+	/**
+	 * Replace the table by a table containing only the buckets that are not full, each slot of the
+	 * old table is frozen when copied so that no update is lost
+	 *
+	 * @param old The table to sweep, nothing is done if it was already replaced
+	 * @param now The current time
+	 * @param wait Whether to wait for the sweep in progress, else it is skipped
+	 */
+	private void sweep(Table old, long now, boolean wait) {
+		if (wait) {
+			sweeping.lock();
+		} else if (!sweeping.tryLock()) {
+			return;
+		}
+
+		try {
+			if (table != old) {
+				return;
+			}
+
+			// the empty slots are frozen too, a key claimed after this point is retried on the new table
+			long[] keys = new long[old.capacity()];
+			long[] tats = new long[old.capacity()];
+			int live = 0;
+			for (int t = 0; t < keys.length; t++) {
+				tats[t] = old.tats.getAndSet(t, FROZEN);
+				keys[t] = old.keys.get(t);
+				if ((keys[t] != 0) && (tats[t] > now)) {
+					++live;
+				}
+			}
+
+			int capacity = INITIAL_CAPACITY;
+			while (capacity < (live << 2)) {
+				capacity <<= 1;
+			}
+
+			Table res = new Table(capacity);
+			for (int t = 0; t < keys.length; t++) {
+				if ((keys[t] != 0) && (tats[t] > now)) {
+					res.tats.set(res.slot(keys[t]), tats[t]);
+				}
+			}
+
+			table = res;
+		} finally {
+			sweeping.unlock();
+		}
+	}
+
+	/**
+	 * Wait for the end of the sweep in progress, the frozen slots are only seen during a sweep
+	 */
+	private void awaitSweep() {
+		sweeping.lock();
+		sweeping.unlock();
+	}
+
+	private static final class Table {
+		private final AtomicLongArray keys;// 0 for an empty slot
+		private final AtomicLongArray tats;
+		private final AtomicInteger size = new AtomicInteger();
+		private final int mask;
+
+		private Table(int capacity) {
+			keys = new AtomicLongArray(capacity);
+			tats = new AtomicLongArray(capacity);
+			mask = capacity - 1;
+		}
+
+		private int capacity() {
+			return (mask + 1);
+		}
+
+		/**
+		 * Return the slot of the given key or -1 if not tracked
+		 */
+		private int find(long key) {
+			if (key == 0) {
+				key = Long.MIN_VALUE;
+			}
+
+			long h = key * 0x9E3779B97F4A7C15L;
+			int index = (int) (h ^ (h >>> 32)) & mask;
+
+			for (int t = 0; t <= mask; t++) {
+				long k = keys.get(index);
+				if (k == key) {
+					return index;
+				}
+
+				if (k == 0) {
+					return -1;
+				}
+
+				index = (index + 1) & mask;
+			}
+
+			return -1;
+		}
+
+		/**
+		 * Return the slot of the given key, claiming an empty slot if needed, or -1 if the table is full
+		 */
+		private int slot(long key) {
+			// the ids are never 0, the key 0 is remapped to keep it free for the empty slots
+			if (key == 0) {
+				key = Long.MIN_VALUE;
+			}
+
+			long h = key * 0x9E3779B97F4A7C15L;
+			int index = (int) (h ^ (h >>> 32)) & mask;
+
+			for (int t = 0; t <= mask; t++) {
+				long k = keys.get(index);
+				if (k == key) {
+					return index;
+				}
+
+				if ((k == 0) && keys.compareAndSet(index, 0, key)) {
+					size.incrementAndGet();
+					return index;
+				}
+
+				// another thread may have claimed the slot for the same key
+				if (keys.get(index) == key) {
+					return index;
+				}
+
+				index = (index + 1) & mask;
+			}
+
+			return -1;
+		}
+	}
+
+}
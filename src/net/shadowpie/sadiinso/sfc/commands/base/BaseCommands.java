@@ -1,12 +1,16 @@
 package net.shadowpie.sadiinso.sfc.commands.base;
 
 import net.dv8tion.jda.api.entities.Guild;
+import net.shadowpie.sadiinso.sfc.commands.Commands;
 import net.shadowpie.sadiinso.sfc.commands.context.CommandContext;
 import net.shadowpie.sadiinso.sfc.commands.context.ContextOrigin;
 import net.shadowpie.sadiinso.sfc.commands.declaration.SFCommand;
+import net.shadowpie.sadiinso.sfc.commands.declaration.SFCommandHelper;
+import net.shadowpie.sadiinso.sfc.commands.handlers.CommandMetrics;
 import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.listeners.eventwaiter.ButtonMenu;
 import net.shadowpie.sadiinso.sfc.permissions.OriginPerms;
+import net.shadowpie.sadiinso.sfc.permissions.PermissionMetrics;
 import net.shadowpie.sadiinso.sfc.sfc.SFC;
 import net.shadowpie.sadiinso.sfc.utils.JdaUtils;
 import net.shadowpie.sadiinso.sfc.utils.SFUtils;
@@ -17,6 +21,11 @@ import java.util.concurrent.TimeUnit;
 
 public class BaseCommands {
 
+	@SFCommandHelper()
+	public static void init() {
+		Commands.registerCommandGroup("stats", "print the metrics of the bot", (byte) (OriginPerms.ALL | OriginPerms.OWNER_ONLY));
+	}
+
 	@SFCommand(
 			name = "stop",
 			description = "stop the bot",
@@ -62,6 +71,47 @@ public class BaseCommands {
 			ctx.reply(SFUtils.monospace(SFUtils.snapFormat(strs, 10, 2)));
 	}
 	
+	@SFCommand(
+			name = "commands",
+			usage = "[reset]",
+			description = "print the invocations and latencies of the slowest commands",
+			allowFrom = OriginPerms.ALL | OriginPerms.OWNER_ONLY,
+			parentGroup = "stats"
+	)
+	public static void onCommandStats(CommandContext ctx) {
+		if ((ctx.argc() > 0) && ctx.arg(0).equalsIgnoreCase("reset")) {
+			CommandMetrics.resetAll();
+			ctx.info("Command metrics cleared");
+			return;
+		}
+		
+		if (ctx.getOrigin() == ContextOrigin.CONSOLE)
+			ctx.reply(CommandMetrics.format(50));
+		else
+			ctx.reply(SFUtils.monospace(CommandMetrics.format(20)));
+	}
+	
+	@SFCommand(
+			name = "perms",
+			alias = "permStats",
+			usage = "[reset]",
+			description = "print the latency metrics of the permissions and database modules",
+			allowFrom = OriginPerms.ALL | OriginPerms.OWNER_ONLY,
+			parentGroup = "stats"
+	)
+	public static void onPermStats(CommandContext ctx) {
+		if ((ctx.argc() > 0) && ctx.arg(0).equalsIgnoreCase("reset")) {
+			PermissionMetrics.reset();
+			ctx.info("Permission metrics cleared");
+			return;
+		}
+		
+		if (ctx.getOrigin() == ContextOrigin.CONSOLE)
+			ctx.reply(PermissionMetrics.format());
+		else
+			ctx.reply(SFUtils.monospace(PermissionMetrics.format()));
+	}
+	
 	@SFCommand(
 			name = "echo",
 			usage = "<value>",
@@ -13,6 +13,7 @@ import net.shadowpie.sadiinso.sfc.utils.SFUtils;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 
 public final class HelpCommand {
 
@@ -29,7 +30,7 @@ public final class HelpCommand {
 	
 	public static void showHelp(CommandContext ctx, boolean owner) {
 		if(ctx.argc() > 0) {
-			String path = ctx.packArgs(".").toLowerCase();
+			String path = ctx.packArgs(".").toLowerCase(Locale.ROOT);
 			AbstractCommandHandler handler = Commands.findCommand(path);
 			
 			if(handler == null) {
@@ -14,8 +14,6 @@ import net.shadowpie.sadiinso.sfc.permissions.Permissions;
 import net.shadowpie.sadiinso.sfc.utils.JdaUtils;
 
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 
 public class PermissionCommands {
 	
@@ -83,7 +81,7 @@ public class PermissionCommands {
 	
 	@SFCommand(
 			name = "list",
-			usage = "<user|role>",
+			usage = "<user|role> [page]",
 			description = "Affiche la liste des permissions de l'utilisateur",
 			allowFrom = OriginPerms.SERVER,
 			parentGroup = "perms"
@@ -94,68 +92,123 @@ public class PermissionCommands {
 			return;
 		
 		Guild guild = ctx.getGuild();
+		int page = Math.max(1, ctx.getAsInt(1, 1));
 		
 		EmbedBuilder builder = JdaUtils.getEmbedBuilder();
-		StringBuilder sb = new StringBuilder(64);
+		PermListPage listing = new PermListPage(builder, guild, (target instanceof Member));
+		String footer;
 		
 		// construct feedback
 		if (target instanceof Member) {
 			Member member = (Member) target;
 			builder.setTitle("Permissions de l'utilisateur \"" + member.getEffectiveName() + "\"");
 			builder.setThumbnail(member.getUser().getAvatarUrl());
-			builder.setFooter("User ID : " + member.getUser().getId(), null);
+			footer = "User ID : " + member.getUser().getId();
 			
 			if (member.getUser().getIdLong() == SFConfig.owner_lid()) {
 				builder.addField(":cat::bread:", "", false);
 			} else if (member.isOwner()) {
 				builder.addField("Permissions spécifiques : ", "*", false);
 			} else {
-				Map<String, List<String>> perms = Permissions.getAll(guild.getIdLong(), member.getUser().getIdLong());
-				List<String> usrPerms = perms.remove(Permissions.permsListUsrKey);
-				
-				// the permissions module ensure all list contains at least one element
-				for (Entry<String, List<String>> entry : perms.entrySet()) {
-					for (String str : entry.getValue()) {
-						sb.append(str);
-						sb.append('\n');
-					}
-					
-					builder.addField("Héritées du rôle \"" + entry.getKey() + "\" : ", sb.toString(), true);
-					sb.setLength(0); // reset string builder
+				// read one more permission to know if there is a next page
+				if (!Permissions.forEach(guild.getIdLong(), member.getUser().getIdLong(), (page - 1) * PERMS_PER_PAGE, PERMS_PER_PAGE + 1, listing)) {
+					ctx.error("Une erreur est survenue");
+					return;
 				}
 				
-				// append user-specific permissions
-				if (usrPerms != null && usrPerms.size() > 0) {
-					for (String str : usrPerms) {
-						sb.append(str);
-						sb.append('\n');
-					}
-					
-					builder.addField("Permissions spécifiques : ", sb.toString(), false);
+				listing.flush();
+				if (listing.count == 0) {
+					builder.addField("Permissions spécifiques : ", (page > 1 ? "Page vide" : "Aucune permission"), false);
 				}
 			}
 			
 		} else { // assume role
 			Role role = (Role) target;
-			List<String> perms = Permissions.getAllFromRole(guild.getIdLong(), role.getIdLong());
+			footer = "Role ID : " + role.getId();
 			
-			if (perms.size() > 0) {
-				for (String str : perms) {
-					sb.append(str);
-					sb.append('\n');
-				}
-			} else {
-				sb.append("Ce rôle n'octroie aucune permissions.");
+			if (!Permissions.forEachFromRole(guild.getIdLong(), role.getIdLong(), (page - 1) * PERMS_PER_PAGE, PERMS_PER_PAGE + 1, listing)) {
+				ctx.error("Une erreur est survenue");
+				return;
 			}
 			
-			builder.addField("Permissions du rôle \"" + role.getName() + "\"", sb.toString(), false);
-			builder.setFooter("Role ID : " + role.getId(), null);
+			listing.flush();
+			if (listing.count == 0) {
+				builder.addField("Permissions du rôle \"" + role.getName() + "\"", (page > 1 ? "Page vide" : "Ce rôle n'octroie aucune permissions."), false);
+			}
+		}
+		
+		if ((page > 1) || listing.hasNext) {
+			footer += " | Page " + page + (listing.hasNext ? " (page suivante : " + (page + 1) + ")" : "");
 		}
 		
 		// send feedback
+		builder.setFooter(footer, null);
 		ctx.reply(builder);
 	}
 	
+	private static final int PERMS_PER_PAGE = 20;
+	
+	/**
+	 * Group the listed permissions by source into embed fields
+	 */
+	private static final class PermListPage implements Permissions.PermConsumer {
+		private final EmbedBuilder builder;
+		private final Guild guild;
+		private final boolean inherited;
+		private final StringBuilder sb = new StringBuilder(64);
+		
+		private boolean fromRole;
+		private long source = -1;
+		private int count = 0;
+		private boolean hasNext = false;
+		
+		private PermListPage(EmbedBuilder builder, Guild guild, boolean inherited) {
+			this.builder = builder;
+			this.guild = guild;
+			this.inherited = inherited;
+		}
+		
+		@Override
+		public boolean accept(boolean fromRole, long source, String perm) {
+			if (count == PERMS_PER_PAGE) {
+				hasNext = true;
+				return false;
+			}
+			
+			if ((source != this.source) || (fromRole != this.fromRole)) {
+				flush();
+				this.fromRole = fromRole;
+				this.source = source;
+			}
+			
+			sb.append(perm);
+			sb.append('\n');
+			++count;
+			return true;
+		}
+		
+		private void flush() {
+			if (sb.length() == 0) {
+				return;
+			}
+			
+			if (fromRole) {
+				Role role = guild.getRoleById(source);
+				String name = (role == null ? Long.toString(source) : role.getName());
+				
+				if (inherited) {
+					builder.addField("Héritées du rôle \"" + name + "\" : ", sb.toString(), true);
+				} else {
+					builder.addField("Permissions du rôle \"" + name + "\"", sb.toString(), false);
+				}
+			} else {
+				builder.addField("Permissions spécifiques : ", sb.toString(), false);
+			}
+			
+			sb.setLength(0); // reset string builder
+		}
+	}
+	
 	@SFCommand(
 			name = "grant",
 			usage = "<user|role> <perm> [<perm2>...]",
@@ -7,14 +7,12 @@ import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.utils.JdaUtils;
 import net.shadowpie.sadiinso.sfc.utils.SFUtils;
 import net.shadowpie.sadiinso.sfc.utils.SStringBuilder;
-import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.Logger;
 
 import java.awt.*;
 import java.awt.image.RenderedImage;
 import java.io.File;
 import java.util.Arrays;
-import java.util.LinkedList;
 
 public abstract class CommandContext {
 	
@@ -68,6 +66,17 @@ public abstract class CommandContext {
 	 */
 	private SStringBuilder pipelineOutBuffer;
 	
+	/**
+	 * Channels to the previous and next commands when the pipeline stages run concurrently, null otherwise
+	 */
+	private PipeChannel pipeInChannel;
+	private PipeChannel pipeOutChannel;
+	
+	/**
+	 * Indicate that the pipeline read buffer has been returned by {@link CommandContext#readPipe()}
+	 */
+	private boolean pipeRead = false;
+	
 	/**
 	 * Indicate whether or not the user tagged the bot to execute this command
 	 */
@@ -78,16 +87,27 @@ public abstract class CommandContext {
 	 */
 	private byte flags = 0;
 	
+	/**
+	 * Indicate that the permissions of the whole pipeline have already been verified
+	 */
+	private boolean permsChecked = false;
+	
+	/**
+	 * Time spent parsing the message and verifying the pipeline permissions, in nanoseconds (-1 if not measured)
+	 */
+	private long parseTime = -1;
+	private long permTime = -1;
+	
 	//############
 	//CONSTRUCTORS
 	//############
 	
-	protected CommandContext(LinkedList<CommandContextFrame> frames, boolean useMention) {
+	protected CommandContext(CommandContextFrame[] frames, boolean useMention) {
 		this.useMention = useMention;
-		this.cframe = frames.pollFirst();
+		this.cframe = frames[0];
 		
-		if(!frames.isEmpty()) {
-			pipeline = frames.toArray(CommandContextFrame[]::new);
+		if(frames.length > 1) {
+			pipeline = Arrays.copyOfRange(frames, 1, frames.length);
 			currentPipelineIndex = 0;
 			pipelineOutBuffer = new SStringBuilder();
 			pipelineInBuffer = new SStringBuilder();
@@ -131,7 +151,7 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public boolean hasPipeline() {
-		return (pipeline != null);
+		return ((pipeline != null) || (pipeOutChannel != null));
 	}
 	
 	/**
@@ -140,7 +160,7 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public boolean advancePipeline() {
-		if(!hasPipeline()) {
+		if(pipeline == null) {
 			return false;
 		}
 		
@@ -158,20 +178,87 @@ public abstract class CommandContext {
 		return true;
 	}
 	
+	/**
+	 * Return the arguments of the current command followed by the arguments of each piped command
+	 */
+	public CommandContextFrame[] pipelineFrames() {
+		int len = ((pipeline != null) ? pipeline.length - currentPipelineIndex : 0);
+		CommandContextFrame[] frames = new CommandContextFrame[len + 1];
+		
+		frames[0] = cframe;
+		if (len > 0) {
+			System.arraycopy(pipeline, currentPipelineIndex, frames, 1, len);
+		}
+		
+		return frames;
+	}
+	
+	/**
+	 * Mark the permissions of the whole pipeline as verified, the command handlers will not check them again
+	 */
+	public void setPermsChecked() {
+		permsChecked = true;
+	}
+	
+	/**
+	 * Mark the permissions as not verified, the command handlers will check them
+	 */
+	public void resetPermsChecked() {
+		permsChecked = false;
+	}
+	
+	/**
+	 * Return whether or not the permissions of the whole pipeline have already been verified
+	 */
+	public boolean arePermsChecked() {
+		return permsChecked;
+	}
+	
+	/**
+	 * Set the time spent building this context from the message
+	 * @param nanos The time in nanoseconds
+	 */
+	public void setParseTime(long nanos) {
+		parseTime = nanos;
+	}
+	
+	/**
+	 * Return the time spent building this context from the message in nanoseconds or -1 if not measured
+	 */
+	public long getParseTime() {
+		return parseTime;
+	}
+	
+	/**
+	 * Set the time spent verifying the permissions of the whole pipeline
+	 * @param nanos The time in nanoseconds
+	 */
+	public void setPermTime(long nanos) {
+		permTime = nanos;
+	}
+	
+	/**
+	 * Return the time spent verifying the permissions of the whole pipeline in nanoseconds or -1 if not measured
+	 */
+	public long getPermTime() {
+		return permTime;
+	}
+	
 	/**
 	 * Return the command pipeline read (in) buffer
 	 * @return A {@link StringBuilder} representing the pipeline read buffer
 	 */
 	@SuppressWarnings("unused")
 	public SStringBuilder getPipeIn() {
-		return pipelineInBuffer;
+		return pipeIn();
 	}
 	
 	/**
 	 * Return whether or not the command pipeline read buffer contains something
 	 */
 	public boolean hasPipeContents() {
-		return ((pipelineInBuffer != null) && !pipelineInBuffer.isEmpty());
+		SStringBuilder in = pipeIn();
+		return ((in != null) && !in.isEmpty());
 	}
 	
 	/**
@@ -180,7 +267,55 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public String getPipeContents() {
-		return ((pipelineInBuffer == null) ? null : pipelineInBuffer.toString());
+		SStringBuilder in = pipeIn();
+		return ((in == null) ? null : in.toString());
+	}
+	
+	/**
+	 * Return the next chunk of the command pipeline input or null once the whole input is read
+	 * <p>
+	 * When the pipeline stages run concurrently (see {@link net.shadowpie.sadiinso.sfc.commands.declaration.SFCommand#streaming()}),
+	 * this method blocks until the previous command writes the next chunk, otherwise the whole
+	 * read buffer is returned at once. The returned chunk is only valid until the next call.
+	 * </p>
+	 */
+	public CharSequence readPipe() {
+		if(pipeInChannel != null) {
+			CharSequence chunk = pipeInChannel.read();
+			if(chunk == null) {
+				pipeInChannel = null;
+				pipeRead = true;
+			}
+			
+			return chunk;
+		}
+		
+		if(pipeRead || (pipelineInBuffer == null) || pipelineInBuffer.isEmpty()) {
+			return null;
+		}
+		
+		pipeRead = true;
+		return pipelineInBuffer;
+	}
+	
+	/**
+	 * Return the pipeline read buffer, reading the rest of the input first when the stages run concurrently
+	 */
+	private SStringBuilder pipeIn() {
+		if(pipeInChannel != null) {
+			if(pipelineInBuffer == null) {
+				pipelineInBuffer = new SStringBuilder();
+			}
+			
+			CharSequence chunk;
+			while((chunk = pipeInChannel.read()) != null) {
+				pipelineInBuffer.append(chunk);
+			}
+			
+			pipeInChannel = null;
+		}
+		
+		return pipelineInBuffer;
 	}
 	
 	/**
@@ -198,7 +333,9 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public void writeToPipe(CharSequence chars) {
-		if(hasPipeline()) {
+		if(pipeOutChannel != null) {
+			pipeOutChannel.write(chars);
+		} else if(hasPipeline()) {
 			pipelineOutBuffer.append(chars);
 		}
 	}
@@ -209,13 +346,18 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public void writeToPipe(Object obj) {
-		if(hasPipeline()) {
+		if(pipeOutChannel != null) {
+			pipeOutChannel.write(String.valueOf(obj));
+		} else if(hasPipeline()) {
 			pipelineOutBuffer.append(obj);
 		}
 	}
 	
 	/**
 	 * Reset the commmand pipeline write buffer
+	 * <p>
+	 * When the pipeline stages run concurrently, the chunks already handed to the next command are not reset.
+	 * </p>
 	 */
 	@SuppressWarnings("unused")
 	public void pipeReset() {
@@ -248,6 +390,64 @@ public abstract class CommandContext {
 		
 		// empty out buffer
 		pipelineOutBuffer.setLength(0);
+		pipeRead = false;
+	}
+	
+	//##########################
+	//CONCURRENT PIPELINE STAGES
+	//##########################
+	
+	/**
+	 * Return a context executing the given command of the pipeline of this context on its own, with
+	 * the same origin, or null if the context can not be forked
+	 * @param frame The arguments of the command
+	 */
+	protected CommandContext forkStage(CommandContextFrame frame) {
+		return null;
+	}
+	
+	/**
+	 * Copy the state shared by all the stages of the pipeline to the given fork
+	 */
+	void copyStageState(CommandContext fork) {
+		fork.permsChecked = permsChecked;
+		fork.parseTime = parseTime;
+		fork.permTime = permTime;
+	}
+	
+	/**
+	 * Execute only the current command, connected to the previous and next commands by the given channels
+	 * @param in The channel to the previous command or null if first
+	 * @param out The channel to the next command or null if last
+	 */
+	void connectStage(PipeChannel in, PipeChannel out) {
+		pipeline = null;
+		pipeInChannel = in;
+		pipeOutChannel = out;
+		pipeRead = false;
+		
+		if(out != null) {
+			pipelineOutBuffer = new SStringBuilder();
+		}
+	}
+	
+	/**
+	 * End the current stage, hand the rest of the output to the next command and stop reading the input
+	 * @param abort Whether the next commands should stop
+	 */
+	void finishStage(boolean abort) {
+		if(pipeOutChannel != null) {
+			if(!abort && !pipelineOutBuffer.isEmpty()) {
+				pipeOutChannel.write(pipelineOutBuffer);
+			}
+			
+			pipeOutChannel.close(abort);
+		}
+		
+		if(pipeInChannel != null) {
+			pipeInChannel.cancel();
+			pipeInChannel = null;
+		}
 	}
 	
 	/**
@@ -257,7 +457,7 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public int argc(boolean includePipe) {
-		return (includePipe && hasPipeContents() ? cframe.crs.length + 1 : cframe.crs.length);
+		return (includePipe && hasPipeContents() ? cframe.argc() + 1 : cframe.argc());
 	}
 	
 	/**
@@ -289,24 +489,7 @@ public abstract class CommandContext {
 	@SuppressWarnings("unused")
 	public boolean mergePipeAndArgs(boolean before) {
 		if(hasPipeContents()) {
-			final int len = cframe.args.length;
-			final String[] tmp = new String[len + 1];
-			
-			if(cframe.crs != null) {
-				for (int i = 0; i < cframe.crs.length; i++) {
-					++cframe.crs[i];
-				}
-			}
-			
-			if(before) {
-				System.arraycopy(cframe.args, 0, tmp, 1, len);
-				tmp[0] = pipelineInBuffer.toString();
-			} else {
-				System.arraycopy(cframe.args, 0, tmp, 0, len);
-				tmp[len] = pipelineInBuffer.toString();
-			}
-			
-			cframe.args = tmp;
+			cframe.merge(pipelineInBuffer, before);
 			return true;
 		} else {
 			return false;
@@ -321,33 +504,23 @@ public abstract class CommandContext {
 	 * Return the current first command argument (AKA prefix)
 	 */
 	public String prefix() {
-		return (cframe.args.length > 0 ? cframe.args[0] : null);
+		return (cframe.argc() > 0 ? cframe.arg(0) : null);
 	}
 	
 	/**
 	 * Rebuild the context without the first command prefix
 	 */
 	public CommandContext pullPrefix() {
-		if(cframe.args.length > 1) {
-			cframe.args = Arrays.copyOfRange(cframe.args, 1, cframe.args.length);
-			
-			// shift and optimize the carriage return index array
-			if(cframe.crs != null) {
-				int toSkip = 0;
-				for (int t = 0; t < cframe.crs.length; t++) {
-					if(--cframe.crs[t] <= 0) {
-						++toSkip;
-					}
-				}
-				
-				if(toSkip >= cframe.crs.length) {
-					cframe.crs = null;
-				} else if(toSkip > 0) {
-					cframe.crs = Arrays.copyOfRange(cframe.crs, toSkip, cframe.crs.length);
-				}
-			}
-		} else {
-			cframe.args = ArrayUtils.EMPTY_STRING_ARRAY;
+		return pullPrefix(1);
+	}
+	
+	/**
+	 * Rebuild the context without the given number of first arguments
+	 * @param count The number of arguments to remove
+	 */
+	public CommandContext pullPrefix(int count) {
+		if(count > 0) {
+			cframe.pull(count);
 		}
 		
 		return this;
@@ -357,7 +530,14 @@ public abstract class CommandContext {
 	 * Return the arguments passed to the command
 	 */
 	public String[] args() {
-		return cframe.args;
+		return cframe.args();
+	}
+	
+	/**
+	 * Return the arguments of the current command without converting them to strings
+	 */
+	public CommandContextFrame currentFrame() {
+		return cframe;
 	}
 	
 	/**
@@ -365,21 +545,23 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public String[][] splitLines() {
-		if(cframe.crs == null) {
-			return new String[][] { cframe.args };
+		String[] args = cframe.args();
+		int[] crs = cframe.lineBreaks();
+		if(crs == null) {
+			return new String[][] { args };
 		}
 		
-		String[][] split = new String[cframe.crs.length + 1][];
+		String[][] split = new String[crs.length + 1][];
 		
 		int prev = 0;
 		int index = 0;
-		for(int t = 0; t < cframe.crs.length; t++) {
-			split[index] = Arrays.copyOfRange(cframe.args, prev, cframe.crs[t]);
-			prev = cframe.crs[t];
+		for(int t = 0; t < crs.length; t++) {
+			split[index] = Arrays.copyOfRange(args, prev, crs[t]);
+			prev = crs[t];
 			++index;
 		}
 		
-		split[index] = Arrays.copyOfRange(cframe.args, prev, cframe.args.length);
+		split[index] = Arrays.copyOfRange(args, prev, args.length);
 		
 		return split;
 	}
@@ -389,7 +571,7 @@ public abstract class CommandContext {
 	 * @param index The argument index or null if the index is out of bonds
 	 */
 	public String arg(int index) {
-		return ((index < cframe.args.length) ? cframe.args[index] : null);
+		return ((index < cframe.argc()) ? cframe.arg(index) : null);
 	}
 	
 	/**
@@ -397,7 +579,7 @@ public abstract class CommandContext {
 	 * @return The command arguments count
 	 */
 	public int argc() {
-		return cframe.args.length;
+		return cframe.argc();
 	}
 	
 	/**
@@ -407,9 +589,9 @@ public abstract class CommandContext {
 	@SuppressWarnings("unused")
 	public int getAsInt(int index) throws NumberFormatException {
 		if(index == PIPELINE) {
-			return Integer.parseInt(pipelineInBuffer, 0, pipelineInBuffer.length(), 10);
+			return Integer.parseInt(pipeIn(), 0, pipelineInBuffer.length(), 10);
 		} else {
-			return Integer.parseInt(cframe.args[index]);
+			return (int) cframe.parseLong(index, Integer.MIN_VALUE, Integer.MAX_VALUE);
 		}
 	}
 	
@@ -434,9 +616,9 @@ public abstract class CommandContext {
 	@SuppressWarnings("unused")
 	public long getAsLong(int index) throws NumberFormatException {
 		if(index == PIPELINE) {
-			return Long.parseLong(pipelineInBuffer, 0, pipelineInBuffer.length(), 10);
+			return Long.parseLong(pipeIn(), 0, pipelineInBuffer.length(), 10);
 		} else {
-			return Long.parseLong(cframe.args[index]);
+			return cframe.parseLong(index, Long.MIN_VALUE, Long.MAX_VALUE);
 		}
 	}
 	
@@ -461,9 +643,9 @@ public abstract class CommandContext {
 	@SuppressWarnings("unused")
 	public double getAsDouble(int index) throws NumberFormatException {
 		if(index == PIPELINE) {
-			return Double.parseDouble(pipelineInBuffer.toString());
+			return Double.parseDouble(pipeIn().toString());
 		} else {
-			return Double.parseDouble(cframe.args[index]);
+			return Double.parseDouble(cframe.arg(index));
 		}
 	}
 	
@@ -488,9 +670,9 @@ public abstract class CommandContext {
 	@SuppressWarnings("unused")
 	public float getAsFloat(int index) throws NumberFormatException {
 		if(index == PIPELINE) {
-			return Float.parseFloat(pipelineInBuffer.toString());
+			return Float.parseFloat(pipeIn().toString());
 		} else {
-			return Float.parseFloat(cframe.args[index]);
+			return Float.parseFloat(cframe.arg(index));
 		}
 	}
 	
@@ -515,9 +697,9 @@ public abstract class CommandContext {
 	@SuppressWarnings("unused")
 	public boolean getAsBoolean(int index) {
 		if(index == PIPELINE) {
-			return Boolean.parseBoolean(pipelineInBuffer.toString());
+			return Boolean.parseBoolean(pipeIn().toString());
 		} else {
-			return Boolean.parseBoolean(cframe.args[index]);
+			return Boolean.parseBoolean(cframe.arg(index));
 		}
 	}
 	
@@ -596,7 +778,7 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public String packArgs() {
-		return packArgs(0, cframe.args.length);
+		return packArgs(0, cframe.argc());
 	}
 	
 	/**
@@ -605,7 +787,7 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public String packArgs(CharSequence between) {
-		return packArgs(0, cframe.args.length, between);
+		return packArgs(0, cframe.argc(), between);
 	}
 	
 	/**
@@ -614,7 +796,7 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public String packArgs(int start) {
-		return packArgs(start, cframe.args.length);
+		return packArgs(start, cframe.argc());
 	}
 	
 	/**
@@ -624,7 +806,7 @@ public abstract class CommandContext {
 	 */
 	@SuppressWarnings("unused")
 	public String packArgs(int start, CharSequence between) {
-		return packArgs(start, cframe.args.length, between);
+		return packArgs(start, cframe.argc(), between);
 	}
 	
 	/**
@@ -635,10 +817,10 @@ public abstract class CommandContext {
 	@SuppressWarnings("unused")
 	public String packArgs(int start, int end) {
 		StringBuilder builder = new StringBuilder(32);
-		end = Math.min(cframe.args.length, end);
+		end = Math.min(cframe.argc(), end);
 		
 		for(int t = Math.max(0, start); t < end; t++) {
-			builder.append(cframe.args[t]);
+			cframe.appendTo(builder, t);
 		}
 		
 		return builder.toString();
@@ -653,14 +835,14 @@ public abstract class CommandContext {
 	@SuppressWarnings("unused")
 	public String packArgs(int start, int end, CharSequence between) {
 		StringBuilder builder = new StringBuilder(32);
-		end = Math.min(cframe.args.length - 1, end);
+		end = Math.min(cframe.argc() - 1, end);
 		
 		for(int t = start; t < end; t++) {
-			builder.append(cframe.args[t]);
+			cframe.appendTo(builder, t);
 			builder.append(between);
 		}
 		
-		builder.append(cframe.args[end]); // add the final argument
+		cframe.appendTo(builder, end); // add the final argument
 		return builder.toString();
 	}
 
@@ -857,7 +1039,7 @@ public abstract class CommandContext {
 	 */
 	@Override
 	public String toString() {
-		return "args=" + Arrays.toString(cframe.args) + ";pipeline=" + SFUtils.deepToString(pipeline) + ";pIndex=" + currentPipelineIndex;
+		return "args=" + Arrays.toString(cframe.args()) + ";pipeline=" + SFUtils.deepToString(pipeline) + ";pIndex=" + currentPipelineIndex;
 	}
 	
 }
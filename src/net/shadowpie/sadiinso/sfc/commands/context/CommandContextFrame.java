@@ -1,11 +1,281 @@
 package net.shadowpie.sadiinso.sfc.commands.context;
 
+import net.shadowpie.sadiinso.sfc.utils.SStringBuilder;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Arguments of a single command of a pipeline
+ * <p>
+ * The arguments are not stored as strings but as bounds in a char buffer shared by all the
+ * frames of a message. A cursor marks the first visible argument, pulling a prefix only moves
+ * it. The strings are only created when a command ask for them and are then cached.
+ * </p>
+ */
 public class CommandContextFrame {
-	public String[] args;
-	public int[] crs;
-	
-	CommandContextFrame(String[] args, int[] crs) {
-		this.args = args;
+
+	// shared by all the frames of the message
+	private char[] buffer;
+
+	// start and end of each argument in the buffer
+	private int[] bounds;
+	private int count;
+
+	// index of the first visible argument
+	private int cursor = 0;
+
+	// index of the arguments starting a new line, null if the command is on a single line
+	private int[] crs;
+
+	// arguments already converted to strings, by index in the bounds
+	private String[] strings;
+
+	/**
+	 * @param buffer The buffer containing the arguments
+	 * @param bounds The start and end of each argument in the buffer
+	 * @param count The number of arguments
+	 * @param crs The index of the arguments starting a new line, null if none
+	 */
+	CommandContextFrame(char[] buffer, int[] bounds, int count, int[] crs) {
+		this.buffer = buffer;
+		this.bounds = bounds;
+		this.count = count;
 		this.crs = crs;
 	}
+
+	/**
+	 * Return the number of visible arguments
+	 */
+	public int argc() {
+		return (count - cursor);
+	}
+
+	/**
+	 * Return the length of the given argument
+	 */
+	public int length(int index) {
+		int abs = checkIndex(index);
+		return (bounds[(abs << 1) + 1] - bounds[abs << 1]);
+	}
+
+	/**
+	 * Return the char at the given position of the given argument
+	 * @param index The argument index
+	 * @param pos The position in the argument (not checked)
+	 */
+	public char charAt(int index, int pos) {
+		return buffer[bounds[checkIndex(index) << 1] + pos];
+	}
+
+	/**
+	 * Return the given argument as a string
+	 * @param index The argument index
+	 */
+	public String arg(int index) {
+		int abs = checkIndex(index);
+		if(strings == null) {
+			strings = new String[bounds.length >> 1];
+		}
+
+		String str = strings[abs];
+		if(str == null) {
+			int start = bounds[abs << 1];
+			str = new String(buffer, start, bounds[(abs << 1) + 1] - start);
+			strings[abs] = str;
+		}
+
+		return str;
+	}
+
+	/**
+	 * Return all the visible arguments as strings
+	 */
+	public String[] args() {
+		int len = argc();
+		if(len == 0) {
+			return ArrayUtils.EMPTY_STRING_ARRAY;
+		}
+
+		String[] args = new String[len];
+		for(int t = 0; t < len; t++) {
+			args[t] = arg(t);
+		}
+
+		return args;
+	}
+
+	/**
+	 * Append the given argument to the given builder
+	 */
+	void appendTo(StringBuilder builder, int index) {
+		int abs = checkIndex(index);
+		int start = bounds[abs << 1];
+		builder.append(buffer, start, bounds[(abs << 1) + 1] - start);
+	}
+
+	/**
+	 * Parse the given argument as a 64 bits signed integer without creating a string
+	 * @param index The argument index
+	 * @param min The minimum accepted value
+	 * @param max The maximum accepted value
+	 * @throws NumberFormatException If the argument is not a number in the given range
+	 */
+	long parseLong(int index, long min, long max) throws NumberFormatException {
+		int abs = checkIndex(index);
+		int t = bounds[abs << 1];
+		int end = bounds[(abs << 1) + 1];
+
+		if(t == end) {
+			throw new NumberFormatException("Empty argument");
+		}
+
+		// accumulate negatively to handle Long.MIN_VALUE
+		boolean negative = false;
+		long limit = -Long.MAX_VALUE;
+		char first = buffer[t];
+		if((first == '-') || (first == '+')) {
+			if(first == '-') {
+				negative = true;
+				limit = Long.MIN_VALUE;
+			}
+
+			if(++t == end) {
+				throw new NumberFormatException("For input \"" + arg(index) + "\"");
+			}
+		}
+
+		long multmin = limit / 10;
+		long result = 0;
+		for(; t < end; t++) {
+			int digit = Character.digit(buffer[t], 10);
+			if((digit < 0) || (result < multmin)) {
+				throw new NumberFormatException("For input \"" + arg(index) + "\"");
+			}
+
+			result *= 10;
+			if(result < limit + digit) {
+				throw new NumberFormatException("For input \"" + arg(index) + "\"");
+			}
+
+			result -= digit;
+		}
+
+		result = (negative ? result : -result);
+		if((result < min) || (result > max)) {
+			throw new NumberFormatException("Value out of range \"" + arg(index) + "\"");
+		}
+
+		return result;
+	}
+
+	/**
+	 * Hide the given number of first arguments
+	 */
+	void pull(int n) {
+		cursor = Math.min(count, cursor + n);
+	}
+
+	/**
+	 * Return the index of the visible arguments starting a new line or null if none, the line
+	 * breaks before the visible arguments are dropped once a prefix is pulled
+	 */
+	int[] lineBreaks() {
+		if(crs == null) {
+			return null;
+		}
+
+		if(cursor == 0) {
+			return crs.clone();
+		}
+
+		int skip = 0;
+		while((skip < crs.length) && (crs[skip] <= cursor)) {
+			++skip;
+		}
+
+		if(skip == crs.length) {
+			return null;
+		}
+
+		int[] res = new int[crs.length - skip];
+		for(int t = 0; t < res.length; t++) {
+			res[t] = crs[skip + t] - cursor;
+		}
+
+		return res;
+	}
+
+	/**
+	 * Add the given value to the visible arguments, the chars are copied without creating a string
+	 * @param value The argument to add
+	 * @param before Whether to add it before or after the others
+	 */
+	void merge(CharSequence value, boolean before) {
+		// the buffer is shared with the other frames, write the value in a private copy
+		int start = buffer.length;
+		int len = value.length();
+		buffer = Arrays.copyOf(buffer, start + len);
+		
+		if(value instanceof SStringBuilder) {
+			System.arraycopy(((SStringBuilder) value).getInternalBuffer(), 0, buffer, start, len);
+		} else if(value instanceof String) {
+			((String) value).getChars(0, len, buffer, start);
+		} else {
+			for(int t = 0; t < len; t++) {
+				buffer[start + t] = value.charAt(t);
+			}
+		}
+
+		int abs;
+		if(before && (cursor > 0)) {
+			// reuse the slot of the last pulled argument
+			abs = --cursor;
+		} else {
+			ensureCapacity(count + 1);
+			if(before) {
+				System.arraycopy(bounds, 0, bounds, 2, count << 1);
+				if(strings != null) {
+					System.arraycopy(strings, 0, strings, 1, count);
+				}
+
+				if(crs != null) {
+					for(int t = 0; t < crs.length; t++) {
+						++crs[t];
+					}
+				}
+
+				abs = 0;
+			} else {
+				abs = count;
+			}
+
+			++count;
+		}
+
+		bounds[abs << 1] = start;
+		bounds[(abs << 1) + 1] = buffer.length;
+		if(strings != null) {
+			strings[abs] = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(args());
+	}
+
+	private void ensureCapacity(int capacity) {
+		if((capacity << 1) > bounds.length) {
+			bounds = Arrays.copyOf(bounds, capacity << 1);
+			if(strings != null) {
+				strings = Arrays.copyOf(strings, capacity);
+			}
+		}
+	}
+
+	private int checkIndex(int index) {
+		return (cursor + Objects.checkIndex(index, count - cursor));
+	}
 }
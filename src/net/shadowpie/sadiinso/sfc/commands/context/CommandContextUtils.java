@@ -1,13 +1,11 @@
 package net.shadowpie.sadiinso.sfc.commands.context;
 
-import gnu.trove.list.array.TIntArrayList;
 import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.sfc.SFC;
 import net.shadowpie.sadiinso.sfc.utils.SStringBuilder;
 
-import java.util.ArrayList;
+import java.nio.CharBuffer;
 import java.util.Arrays;
-import java.util.LinkedList;
 
 public class CommandContextUtils {
 	
@@ -19,7 +17,7 @@ public class CommandContextUtils {
 	 * @param useMention true if the command mention the bot, false if it use the tag system
 	 */
 	public static SStringBuilder resolveMentions(String msg, boolean useMention) {
-		return resolveMentions(msg.toCharArray(), useMention);
+		return resolveMentions((CharSequence) msg, useMention);
 	}
 	
 	/**
@@ -30,155 +28,242 @@ public class CommandContextUtils {
 	 * @param useMention true if the command mention the bot, false if it use the tag system
 	 */
 	public static SStringBuilder resolveMentions(char[] msg, boolean useMention) {
-		int index = 0;
+		return resolveMentions(CharBuffer.wrap(msg), useMention);
+	}
+	
+	private static SStringBuilder resolveMentions(CharSequence msg, boolean useMention) {
+		int len = msg.length();
 		
 		// remove caller
-		index += (useMention ? SFC.selfMention().length() : SFConfig.bot_tag().length());
+		int index = (useMention ? SFC.selfMention().length() : SFConfig.bot_tag().length());
 		
 		// remove post-caller whitespaces (including ZWS)
-		while ((index < msg.length) && (Character.isWhitespace(msg[index]) || (msg[index] == '\u200B'))) {
+		while ((index < len) && (Character.isWhitespace(msg.charAt(index)) || (msg.charAt(index) == '\u200B'))) {
 			++index;
 		}
 		
-		if(index == msg.length) {
+		if(index >= len) {
 			return null;
 		}
 		
-		// resolve mentions (skip resolving if message size is less than 21 chars : no possible IDs left to resolve)
-		if (msg.length - index > 20) {
-			SStringBuilder builder = new SStringBuilder(msg.length - index); // ensure that the internal buffer will nether growth
-			int lastPush = msg.length - 21;
+		SStringBuilder builder = new SStringBuilder(len - index); // ensure that the internal buffer will never grow
+		for (int t = index; t < len; t++) {
+			char c = msg.charAt(t);
 			
-			resolve: for (int t = index, len = msg.length - 20; t < len; t++) { // prevent "msg.length - 20" to be re-calculated each loop turn
-				if(msg[t] == '<') {
-					int tmp = t + 1;
-					
-					if(msg[tmp] == '@') {
-						if(msg[tmp + 1] == '!') {
-							++tmp;
-						}
-					} else if (msg[tmp] != '#') {
-						builder.append(msg[t]);
-						lastPush = t;
-						continue;
-					}
-					
-					++tmp;
-					if(msg[tmp + 18] == '>') {
-						for (int u = tmp, len2 = tmp + 18; u < len2; u++) {
-							if (!Character.isDigit(msg[u])) {
-								builder.append(msg[t]);
-								lastPush = t;
-								continue resolve;
-							}
-						}
-						
-						builder.append(msg, tmp, 18);// push digits
-						t = tmp + 18;
-					} else {
-						builder.append(msg[t]);
-					}
-				} else {
-					builder.append(msg[t]);
+			if(c == '<') {
+				int id = mentionId(msg, t);
+				if(id != -1) {
+					builder.append(msg, id, id + 18);// push digits
+					t = id + 18; // skip the closing '>'
+					continue;
 				}
-				
-				lastPush = t;
 			}
 			
-			builder.append(msg, lastPush + 1);
-			return builder;
-		} else {
-			return new SStringBuilder(Arrays.copyOfRange(msg, index, msg.length));
+			builder.append(c);
 		}
+		
+		return builder;
 	}
 	
-	public static LinkedList<CommandContextFrame> extractFrames(char[] cmd) {
-		return extractFrames(new SStringBuilder(cmd, true));
+	/**
+	 * Split the given command into the frames of its pipeline
+	 * <p>
+	 * The message is read once : the mentions are replaced by their ids, the arguments are
+	 * unquoted and unescaped and the frames are split at each pipe, all in the same pass. The
+	 * arguments are written in a single buffer referenced by all the frames.
+	 * </p>
+	 *
+	 * @param msg The command message
+	 * @param from The index of the first char of the command (after the caller)
+	 * @param resolveMentions Whether to replace the user, role and channel mentions by their ids
+	 * @return The frames or null if a command of the pipeline is empty
+	 */
+	public static CommandContextFrame[] parse(CharSequence msg, int from, boolean resolveMentions) {
+		int len = msg.length();
+		if(from >= len) {
+			return null;
+		}
+		
+		Lexer lexer = lexers.get();
+		lexer.reset(new char[len - from]);
+		
+		for (int t = from; t < len; t++) {
+			char c = msg.charAt(t);
+			
+			if((c == '<') && resolveMentions) {
+				int id = mentionId(msg, t);
+				if(id != -1) {
+					for (int u = id; u < id + 18; u++) {
+						lexer.feed(msg.charAt(u));
+					}
+					
+					t = id + 18; // skip the closing '>'
+					continue;
+				}
+			}
+			
+			if(!lexer.feed(c)) {
+				return null;
+			}
+		}
+		
+		return lexer.finish();
 	}
 	
-	public static LinkedList<CommandContextFrame> extractFrames(SStringBuilder cmd) {
-		LinkedList<CommandContextFrame> frames = new LinkedList<>();
-		frames.addFirst(extractArguments(cmd, 0, frames));
+	/**
+	 * Return the index of the id of the mention starting at the given index or -1 if there is no mention
+	 * <p>
+	 * The recognized mentions are {@code <@id>}, {@code <@!id>} and {@code <#id>} with 18 digits ids.
+	 * </p>
+	 */
+	private static int mentionId(CharSequence msg, int index) {
+		int len = msg.length();
+		int t = index + 1;
+		if(t >= len) {
+			return -1;
+		}
 		
-		/* check if list or last frame is empty */
-		if(frames.peekLast() == null) {
-			return null;
+		char c = msg.charAt(t);
+		if(c == '@') {
+			if((t + 1 < len) && (msg.charAt(t + 1) == '!')) {
+				++t;
+			}
+		} else if(c != '#') {
+			return -1;
+		}
+		
+		++t;
+		if((t + 18 >= len) || (msg.charAt(t + 18) != '>')) {
+			return -1;
 		}
 		
-		return frames;
+		for (int u = t; u < t + 18; u++) {
+			if(!Character.isDigit(msg.charAt(u))) {
+				return -1;
+			}
+		}
+		
+		return t;
 	}
 	
-	private static CommandContextFrame extractArguments(SStringBuilder cmd, int from, LinkedList<CommandContextFrame> frames) {
-		ArrayList<String> tmpArgs = new ArrayList<>();
-		TIntArrayList crs = new TIntArrayList();
-		SStringBuilder builder = new SStringBuilder(); // buffer to build the arguments
-		boolean inStr = false, escapeNext = false;
-		int t, pindex = -1;
-		
-		iter:
-		for (t = from; t < cmd.length(); t++) {
-			if(Character.isWhitespace(cmd.fastCharAt(t))) {
+	private static final ThreadLocal<Lexer> lexers = ThreadLocal.withInitial(Lexer::new);
+	
+	/**
+	 * State machine splitting the chars of a command into arguments and frames
+	 * <p>
+	 * The bounds of the arguments are accumulated in buffers reused by all the commands parsed
+	 * on the same thread, only the chars buffer and the final frames are allocated per command.
+	 * </p>
+	 */
+	private static final class Lexer {
+		private char[] out;
+		private int write, argStart;
+		private boolean inStr, escapeNext;
+		
+		// bounds and line breaks of the current frame
+		private int[] bounds = new int[32];
+		private int boundsLen;
+		private int[] crs = new int[8];
+		private int crsLen;
+		
+		// frames already closed
+		private CommandContextFrame[] frames = new CommandContextFrame[4];
+		private int frameCount;
+		
+		private void reset(char[] out) {
+			this.out = out;
+			write = argStart = 0;
+			inStr = escapeNext = false;
+			boundsLen = crsLen = 0;
+			frameCount = 0;
+		}
+		
+		/**
+		 * @return false if the char close an empty frame
+		 */
+		private boolean feed(char c) {
+			if(Character.isWhitespace(c)) {
 				if(inStr) {
-					builder.append(cmd.fastCharAt(t));
+					out[write++] = c;
 				} else {
-					if(!builder.isEmpty()) {
-						tmpArgs.add(builder.toString());
-						builder.reset();
-					}
+					closeArg();
 					
-					if((cmd.fastCharAt(t) == '\n') && (crs.isEmpty() || (crs.get(crs.size() - 1) != tmpArgs.size()))) {
-						crs.add(tmpArgs.size());
+					int argc = (boundsLen >> 1);
+					if((c == '\n') && ((crsLen == 0) || (crs[crsLen - 1] != argc))) {
+						if(crsLen == crs.length) {
+							crs = Arrays.copyOf(crs, crsLen << 1);
+						}
+						
+						crs[crsLen++] = argc;
 					}
 				}
-				continue;
+				
+				return true;
 			}
 			
 			if(escapeNext) {
-				builder.append(cmd.fastCharAt(t));
+				out[write++] = c;
 				escapeNext = false;
-			} else {
-				switch(cmd.fastCharAt(t)) {
-					case '\\':
-						escapeNext = true;
-						break;
-					
-					case '\"':
-						inStr = !inStr;
-						break;
-						
-					case '|':
-						if(!inStr) { // execute and break only if not in string block, else run the default case
-							pindex = t + 1;
-							break iter;
-						}
-					
-					default:
-						builder.append(cmd.fastCharAt(t));
-				}
+				return true;
+			}
+			
+			switch(c) {
+				case '\\':
+					escapeNext = true;
+					return true;
+				
+				case '\"':
+					inStr = !inStr;
+					return true;
+				
+				case '|':
+					if(!inStr) { // close the frame only if not in string block, else run the default case
+						return closeFrame();
+					}
+				
+				default:
+					out[write++] = c;
+					return true;
 			}
 		}
 		
-		/* reconstruct arguments */
-		final String[] args;
-		if(builder.isEmpty()) {
-			args = tmpArgs.toArray(String[]::new);
-		} else {
-			args = new String[tmpArgs.size() + 1];
-			tmpArgs.toArray(args);
-			args[tmpArgs.size()] = builder.toString();
+		private CommandContextFrame[] finish() {
+			CommandContextFrame[] res = (closeFrame() ? Arrays.copyOf(frames, frameCount) : null);
+			
+			// release the references to the message
+			Arrays.fill(frames, 0, frameCount, null);
+			out = null;
+			return res;
 		}
 		
-		/* check for null frame */
-		if(args.length == 0) {
-			return null;
+		private void closeArg() {
+			if(write > argStart) {
+				if(boundsLen == bounds.length) {
+					bounds = Arrays.copyOf(bounds, boundsLen << 1);
+				}
+				
+				bounds[boundsLen++] = argStart;
+				bounds[boundsLen++] = write;
+				argStart = write;
+			}
 		}
 		
-		/* add piped commands */
-		if(pindex != -1) {
-			frames.addFirst(extractArguments(cmd, pindex, frames));
+		private boolean closeFrame() {
+			closeArg();
+			if(boundsLen == 0) {
+				Arrays.fill(frames, 0, frameCount, null);
+				out = null;
+				return false;
+			}
+			
+			if(frameCount == frames.length) {
+				frames = Arrays.copyOf(frames, frameCount << 1);
+			}
+			
+			frames[frameCount++] = new CommandContextFrame(out, Arrays.copyOf(bounds, boundsLen), (boundsLen >> 1), ((crsLen == 0) ? null : Arrays.copyOf(crs, crsLen)));
+			boundsLen = crsLen = 0;
+			return true;
 		}
-		
-		return new CommandContextFrame(args, (crs.isEmpty() ? null : crs.toArray()));
 	}
 	
 }
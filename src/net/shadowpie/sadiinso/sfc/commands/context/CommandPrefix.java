@@ -0,0 +1,102 @@
+package net.shadowpie.sadiinso.sfc.commands.context;
+
+import net.shadowpie.sadiinso.sfc.config.SFConfig;
+import net.shadowpie.sadiinso.sfc.sfc.SFC;
+
+/**
+ * Matcher of the command callers (the bot tag and the bot mentions {@code <@id>} and {@code <@!id>})
+ * <p>
+ * Built once from the configuration, it is used to drop the messages that are not commands
+ * with a few char comparisons, before applying the filters and building the command context.
+ * </p>
+ */
+public final class CommandPrefix {
+
+	/**
+	 * Returned when the message does not start with a caller
+	 */
+	public static final int NO_MATCH = -1;
+
+	private static volatile CommandPrefix instance;
+
+	private final char[] tag;
+	private final char[] selfId;// null if the mentions are disabled
+
+	// the caller followed by at least one char
+	private final int tagMinLength;
+	private final int mentionMinLength;
+
+	private CommandPrefix(String tag, String selfId) {
+		this.tag = tag.toCharArray();
+		this.selfId = ((selfId == null) ? null : selfId.toCharArray());
+		this.tagMinLength = Math.max(2, this.tag.length + 1);
+		this.mentionMinLength = ((selfId == null) ? Integer.MAX_VALUE : selfId.length() + 4);
+	}
+
+	/**
+	 * Return the matcher of the configured callers, the bot must be logged in
+	 */
+	public static CommandPrefix get() {
+		CommandPrefix prefix = instance;
+		if (prefix == null) {
+			synchronized (CommandPrefix.class) {
+				prefix = instance;
+				if (prefix == null) {
+					prefix = new CommandPrefix(SFConfig.bot_tag(), (SFConfig.use_mention() ? SFC.getSelfUserId() : null));
+					instance = prefix;
+				}
+			}
+		}
+
+		return prefix;
+	}
+
+	/**
+	 * Return the length of the bot tag the given message starts with
+	 *
+	 * @param content The raw content of the message
+	 * @return The length or {@link #NO_MATCH}
+	 */
+	public int matchTag(String content) {
+		if (content.length() < tagMinLength) {
+			return NO_MATCH;
+		}
+
+		char[] tag = this.tag;
+		for (int t = 0; t < tag.length; t++) {
+			if (content.charAt(t) != tag[t]) {
+				return NO_MATCH;
+			}
+		}
+
+		return tag.length;
+	}
+
+	/**
+	 * Return the length of the bot mention the given message starts with
+	 *
+	 * @param content The raw content of the message
+	 * @return The length or {@link #NO_MATCH}
+	 */
+	public int matchMention(String content) {
+		char[] id = selfId;
+		if ((content.length() < mentionMinLength) || (content.charAt(0) != '<') || (content.charAt(1) != '@')) {
+			return NO_MATCH;
+		}
+
+		int start = ((content.charAt(2) == '!') ? 3 : 2);
+		int end = start + id.length;
+		if ((content.length() <= end) || (content.charAt(end) != '>')) {
+			return NO_MATCH;
+		}
+
+		for (int t = 0; t < id.length; t++) {
+			if (content.charAt(start + t) != id[t]) {
+				return NO_MATCH;
+			}
+		}
+
+		return end + 1;
+	}
+
+}
@@ -8,25 +8,32 @@ import org.slf4j.Logger;
 import java.awt.*;
 import java.awt.image.RenderedImage;
 import java.io.File;
-import java.util.LinkedList;
 
 public class ConsoleCommandContext extends CommandContext {
 
 	private static final Logger logger = JDALogger.getLog("Console_Commands");
 	
 	public static CommandContext getContext(String message) {
-		LinkedList<CommandContextFrame> frames = CommandContextUtils.extractFrames(message.toCharArray());
+		long start = System.nanoTime();
+		CommandContextFrame[] frames = CommandContextUtils.parse(message, 0, false);
 		if(frames == null) {
 			return null;
 		}
 		
-		return new ConsoleCommandContext(frames);
+		CommandContext ctx = new ConsoleCommandContext(frames);
+		ctx.setParseTime(System.nanoTime() - start);
+		return ctx;
 	}
 	
-	private ConsoleCommandContext(LinkedList<CommandContextFrame> frames) {
+	private ConsoleCommandContext(CommandContextFrame[] frames) {
 		super(frames, false);
 	}
 	
+	@Override
+	protected CommandContext forkStage(CommandContextFrame frame) {
+		return new ConsoleCommandContext(new CommandContextFrame[] { frame });
+	}
+	
 	@Override
 	public ContextOrigin getOrigin() {
 		return ContextOrigin.CONSOLE;
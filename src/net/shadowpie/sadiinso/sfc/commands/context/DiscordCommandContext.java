@@ -5,12 +5,10 @@ import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.sfc.SFC;
 import net.shadowpie.sadiinso.sfc.utils.JdaUtils;
 import net.shadowpie.sadiinso.sfc.utils.SFUtils;
-import net.shadowpie.sadiinso.sfc.utils.SStringBuilder;
 
 import java.awt.*;
 import java.awt.image.RenderedImage;
 import java.io.File;
-import java.util.LinkedList;
 import java.util.List;
 
 public class DiscordCommandContext extends CommandContext {
@@ -20,35 +18,55 @@ public class DiscordCommandContext extends CommandContext {
 
 	public static CommandContext getContext(Message message) {
 		String content = message.getContentRaw();
-		if (content.length() < 2) {
-			return null;
-		}
+		CommandPrefix prefix = CommandPrefix.get();
 		
-		boolean useTag = (content.startsWith(SFConfig.bot_tag()));
-		boolean useMention = (!useTag && SFConfig.use_mention() && content.startsWith(SFC.selfMention()));
-
-		if (!useTag && !useMention) {
-			return null;
+		int caller = prefix.matchTag(content);
+		if (caller != CommandPrefix.NO_MATCH) {
+			return getContext(message, caller, false);
 		}
 		
-		SStringBuilder resolved = CommandContextUtils.resolveMentions(content, useMention);
-		if(resolved == null) {
-			return null;
+		caller = prefix.matchMention(content);
+		return ((caller == CommandPrefix.NO_MATCH) ? null : getContext(message, caller, true));
+	}
+	
+	/**
+	 * Build the context of the given message, which is known to start with a caller (see {@link CommandPrefix})
+	 * 
+	 * @param message The command message
+	 * @param caller The length of the caller
+	 * @param useMention Whether the caller is a mention of the bot or the bot tag
+	 * @return The context or null if the message does not contain a command
+	 */
+	public static CommandContext getContext(Message message, int caller, boolean useMention) {
+		long start = System.nanoTime();
+		String content = message.getContentRaw();
+		
+		// remove the caller and the following whitespaces (including ZWS)
+		int from = caller;
+		while ((from < content.length()) && (Character.isWhitespace(content.charAt(from)) || (content.charAt(from) == '\u200B'))) {
+			++from;
 		}
 		
-		LinkedList<CommandContextFrame> frames = CommandContextUtils.extractFrames(resolved);
+		CommandContextFrame[] frames = CommandContextUtils.parse(content, from, true);
 		if(frames == null) {
 			return null;
 		}
 		
-		return new DiscordCommandContext(frames, message, useMention);
+		CommandContext ctx = new DiscordCommandContext(frames, message, useMention);
+		ctx.setParseTime(System.nanoTime() - start);
+		return ctx;
 	}
 	
-	private DiscordCommandContext(LinkedList<CommandContextFrame> frames, Message msg, boolean useMention) {
+	private DiscordCommandContext(CommandContextFrame[] frames, Message msg, boolean useMention) {
 		super(frames, useMention);
 		this.message = msg;
 	}
 	
+	@Override
+	protected CommandContext forkStage(CommandContextFrame frame) {
+		return new DiscordCommandContext(new CommandContextFrame[] { frame }, message, usedMention());
+	}
+	
 	@Override
 	public ContextOrigin getOrigin() {
 		return ((message.getChannel() instanceof TextChannel) ? ContextOrigin.SERVER : ContextOrigin.PRIVATE);
@@ -0,0 +1,133 @@
+package net.shadowpie.sadiinso.sfc.commands.context;
+
+import net.shadowpie.sadiinso.sfc.utils.SStringBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Channel between two concurrent stages of a command pipeline
+ * <p>
+ * The writes are coalesced in chunks which are handed to the reader through a queue. When the
+ * queue is bounded the writer blocks while it is full, so that a fast producer can not get ahead
+ * of a slow consumer. Once the reader is done the channel is cancelled and the writes are dropped.
+ * </p>
+ */
+final class PipeChannel {
+
+	// chars coalesced before handing a chunk to the reader
+	static final int CHUNK_SIZE = 4096;
+
+	// marks the end of the stream
+	private static final String EOF = new String("EOF");
+
+	private final BlockingQueue<String> queue;
+	private final SStringBuilder pending = new SStringBuilder(CHUNK_SIZE);
+
+	private volatile boolean cancelled = false;
+	private boolean closed = false;// reader side
+
+	/**
+	 * @param capacity The maximum number of queued chunks, 0 for an unbounded queue
+	 */
+	PipeChannel(int capacity) {
+		this.queue = ((capacity > 0) ? new ArrayBlockingQueue<>(capacity) : new LinkedBlockingQueue<>());
+	}
+
+	//###########
+	//WRITER SIDE
+	//###########
+
+	/**
+	 * Append the given chars, a chunk is handed to the reader once enough chars are written
+	 */
+	void write(CharSequence chars) {
+		if (cancelled) {
+			return;
+		}
+
+		pending.append(chars);
+		if (pending.length() >= CHUNK_SIZE) {
+			flush();
+		}
+	}
+
+	/**
+	 * Hand the written chars to the reader
+	 */
+	void flush() {
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		String chunk = pending.toString();
+		pending.setLength(0);
+		put(chunk);
+	}
+
+	/**
+	 * Flush the written chars and end the stream
+	 *
+	 * @param abort Whether the written chars should be dropped
+	 */
+	void close(boolean abort) {
+		if (abort) {
+			pending.setLength(0);
+		} else {
+			flush();
+		}
+
+		put(EOF);
+	}
+
+	private void put(String chunk) {
+		try {
+			// the reader cancels the channel when it ends, the writer can not stay blocked
+			while (!cancelled && !queue.offer(chunk, 50, TimeUnit.MILLISECONDS)) {
+				// full, the cancellation is polled
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancelled = true;
+		}
+	}
+
+	//###########
+	//READER SIDE
+	//###########
+
+	/**
+	 * Return the next chunk, blocking until it is written, or null at the end of the stream
+	 */
+	CharSequence read() {
+		if (closed) {
+			return null;
+		}
+
+		try {
+			String chunk = queue.take();
+			if (chunk == EOF) {
+				closed = true;
+				return null;
+			}
+
+			return chunk;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel();
+			return null;
+		}
+	}
+
+	/**
+	 * Stop reading, the pending and future writes are dropped
+	 */
+	void cancel() {
+		closed = true;
+		cancelled = true;
+		queue.clear();
+	}
+
+}
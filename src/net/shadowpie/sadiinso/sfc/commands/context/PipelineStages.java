@@ -0,0 +1,59 @@
+package net.shadowpie.sadiinso.sfc.commands.context;
+
+/**
+ * Split of a command pipeline in concurrent stages
+ * <p>
+ * Each command of the pipeline gets its own context, connected to the previous and next
+ * commands by a {@link PipeChannel}. The channel to a streaming command is bounded, the writer
+ * waits for the reader. The channel to another command is unbounded, as this command only
+ * starts once the previous one ends.
+ * </p>
+ */
+public final class PipelineStages {
+
+	// Suppresses default constructor, ensuring non-instantiability.
+	private PipelineStages() {}
+
+	/**
+	 * Split the pipeline of the given context, the given context becomes the first stage
+	 *
+	 * @param ctx The context of the pipeline, before its first command is executed
+	 * @param streaming Whether each command reads its input as it is written
+	 * @param capacity The maximum number of chunks queued to a streaming command
+	 * @return The context of each command or null if the context can not be split
+	 */
+	public static CommandContext[] split(CommandContext ctx, boolean[] streaming, int capacity) {
+		CommandContextFrame[] frames = ctx.pipelineFrames();
+		CommandContext[] stages = new CommandContext[frames.length];
+
+		stages[0] = ctx;
+		for (int t = 1; t < frames.length; t++) {
+			stages[t] = ctx.forkStage(frames[t]);
+			if (stages[t] == null) {
+				return null;
+			}
+
+			ctx.copyStageState(stages[t]);
+		}
+
+		PipeChannel in = null;
+		for (int t = 0; t < stages.length; t++) {
+			PipeChannel out = ((t == stages.length - 1) ? null : new PipeChannel(streaming[t + 1] ? capacity : 0));
+			stages[t].connectStage(in, out);
+			in = out;
+		}
+
+		return stages;
+	}
+
+	/**
+	 * End the given stage, the rest of its output is handed to the next command and its input is dropped
+	 *
+	 * @param stage The context of the stage
+	 * @param abort Whether the next commands should stop, their input ends without the output of this stage
+	 */
+	public static void finish(CommandContext stage, boolean abort) {
+		stage.finishStage(abort);
+	}
+
+}
@@ -1,5 +1,6 @@
 package net.shadowpie.sadiinso.sfc.commands.declaration;
 
+import net.shadowpie.sadiinso.sfc.commands.RateLimiter;
 import net.shadowpie.sadiinso.sfc.permissions.OriginPerms;
 import org.apache.commons.lang3.StringUtils;
 
@@ -70,4 +71,31 @@ public @interface SFCommand {
 	 * exemple : <strong>permgroup.perm</strong>
 	 */
 	String permissions() default StringUtils.EMPTY;
+	
+	/**
+	 * Set the delay in milliseconds to recover one use of the command, 0 to disable the rate limit
+	 * <br>
+	 * The limit is checked before the permissions, the bot owner is not limited
+	 */
+	long cooldown() default 0;
+	
+	/**
+	 * Set the number of uses of the command that can be made in a row before waiting for the cooldown
+	 */
+	int burst() default 1;
+	
+	/**
+	 * Set the scope of the rate limit : {@link RateLimiter#USER}, {@link RateLimiter#GUILD} or {@link RateLimiter#GLOBAL}
+	 * <br>
+	 * Set to "user" by default
+	 */
+	byte cooldownScope() default RateLimiter.USER;
+	
+	/**
+	 * Set whether the command reads its pipeline input chunk by chunk (see CommandContext#readPipe)
+	 * <br>
+	 * When the streaming pipelines are enabled, such a command is started with the previous command
+	 * of the pipeline and reads its output as it is written
+	 */
+	boolean streaming() default false;
 }
@@ -1,6 +1,8 @@
 package net.shadowpie.sadiinso.sfc.commands.handlers;
 
+import net.dv8tion.jda.internal.utils.JDALogger;
 import net.shadowpie.sadiinso.sfc.commands.Commands;
+import net.shadowpie.sadiinso.sfc.commands.RateLimiter;
 import net.shadowpie.sadiinso.sfc.commands.context.CommandContext;
 import net.shadowpie.sadiinso.sfc.commands.context.ContextOrigin;
 import net.shadowpie.sadiinso.sfc.commands.declaration.SFCommand;
@@ -8,6 +10,7 @@ import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.permissions.Permissions;
 import net.shadowpie.sadiinso.sfc.sfc.SFC;
 import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
 
 import java.lang.invoke.LambdaMetafactory;
 import java.lang.invoke.MethodHandle;
@@ -18,6 +21,8 @@ import java.lang.reflect.Method;
 
 public class ASFCommandHandler extends AbstractCommandHandler {
 
+	private static final Logger logger = JDALogger.getLog("Commands");
+
 	@FunctionalInterface
 	private interface CommandCallSite {
 		void execute(CommandContext ctx);
@@ -33,7 +38,7 @@ public class ASFCommandHandler extends AbstractCommandHandler {
 	private final CommandCallSite command;
 	
 	public ASFCommandHandler(@NotNull SFCommand inf, CommandCallSite command, String[] perms) {
-		super(inf.name(), inf.alias(), inf.usage(), inf.description(), inf.allowFrom(), perms);
+		super(inf.name(), inf.alias(), inf.usage(), inf.description(), inf.allowFrom(), perms, RateLimiter.of(inf), inf.streaming());
 		this.command = command;
 	}
 	
@@ -45,22 +50,30 @@ public class ASFCommandHandler extends AbstractCommandHandler {
 		long selfid = SFC.getSelfUserIdLong();
 		boolean isAdmin = ((uid == ownerid) || (uid == selfid));
 		
-		if ((ctx.getOrigin() == ContextOrigin.SERVER) && (perms != null) && !isAdmin) {
+		if ((ctx.getOrigin() == ContextOrigin.SERVER) && (perms != null) && !isAdmin && !ctx.arePermsChecked()) {
+			long start = System.nanoTime();
 			for (int t = 0; t < perms.length; t++) {
-				if (!Permissions.hasPerm(ctx.getGuild().getIdLong(), ctx.getAuthorIdLong(), perms[t])) {
+				if (!Permissions.hasPerm(ctx.getGuild().getIdLong(), uid, permChains[t])) {
+					metrics.permission().since(start);
 					ctx.warn(Commands.err_no_perm.replace("%perm", perms[t]));
 					return Commands.COMMAND_PERM_ERROR;
 				}
 			}
+			
+			metrics.permission().since(start);
 		}
 		
+		long start = System.nanoTime();
 		try {
 			command.execute(ctx);
 		} catch(Exception e) {
-			e.printStackTrace();
+			metrics.execute().since(start);
+			metrics.error(e);
+			logger.error("Error while executing the command \"" + name + "\"; user=" + ctx.getAuthorId(), e);
 			return Commands.COMMAND_ERROR;
 		}
 		
+		metrics.execute().since(start);
 		return Commands.COMMAND_SUCCESS;
 	}
 
@@ -1,6 +1,8 @@
 package net.shadowpie.sadiinso.sfc.commands.handlers;
 
+import net.shadowpie.sadiinso.sfc.commands.RateLimiter;
 import net.shadowpie.sadiinso.sfc.commands.context.CommandContext;
+import net.shadowpie.sadiinso.sfc.permissions.Permissions;
 import org.jetbrains.annotations.NotNull;
 
 public abstract class AbstractCommandHandler {
@@ -10,14 +12,33 @@ public abstract class AbstractCommandHandler {
 	public final String computedUsage;
 	public final String description;
 	public final String[] perms;
+	public final int[][] permChains;// resolved perms, the perms must be registered before the handler creation, null for a malformed perm (owners only)
 	public final byte originPerms;
+	public final RateLimiter rateLimiter;// null if the command is not rate limited
+	public final boolean streaming;// whether the command reads its pipeline input chunk by chunk
+	public final CommandMetrics metrics = new CommandMetrics();
 	
 	public AbstractCommandHandler(String name, String alias, String usage, String description, byte originPerms, String[] perms) {
+		this(name, alias, usage, description, originPerms, perms, null, false);
+	}
+	
+	public AbstractCommandHandler(String name, String alias, String usage, String description, byte originPerms, String[] perms, RateLimiter rateLimiter, boolean streaming) {
 		this.name = name;
 		this.alias = (((alias == null) || alias.isEmpty()) ? null : alias);
 		this.originPerms = originPerms;
 		this.description = description;
 		this.perms = perms;
+		this.rateLimiter = rateLimiter;
+		this.streaming = streaming;
+		
+		if (perms == null) {
+			this.permChains = null;
+		} else {
+			this.permChains = new int[perms.length][];
+			for (int t = 0; t < perms.length; t++) {
+				this.permChains[t] = Permissions.resolve(perms[t]);
+			}
+		}
 		
 		if ((usage == null) || usage.isEmpty()) {
 			this.computedUsage = null;
@@ -0,0 +1,224 @@
+package net.shadowpie.sadiinso.sfc.commands.handlers;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import net.shadowpie.sadiinso.sfc.commands.Commands;
+import net.shadowpie.sadiinso.sfc.utils.LatencyHistogram;
+import net.shadowpie.sadiinso.sfc.utils.SFUtils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution metrics of a command handler
+ * <p>
+ * The invocations are counted by end status, the latencies are split in three phases: the
+ * parsing of the message, the verification of the permissions and the execution of the
+ * command. The parse and permission phases are shared by all the commands of a pipeline and
+ * are recorded for each of them.
+ * </p>
+ */
+public final class CommandMetrics {
+
+	// labels of the statuses defined in Commands, by value
+	private static final String[] STATUS_LABELS = { "success", "not_found", "error", "perm_error", "busy", "rate_limited" };
+
+	private final LongAdder[] statuses = new LongAdder[STATUS_LABELS.length];
+	private final LatencyHistogram parse = new LatencyHistogram();
+	private final LatencyHistogram permission = new LatencyHistogram();
+	private final LatencyHistogram execute = new LatencyHistogram();
+	private final LongAdder errors = new LongAdder();
+	private volatile String lastError;
+
+	CommandMetrics() {
+		for (int t = 0; t < statuses.length; t++) {
+			statuses[t] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Count an invocation ending with the given status
+	 *
+	 * @param status The end status (see {@link Commands#execute})
+	 */
+	public void record(int status) {
+		if ((status >= 0) && (status < statuses.length)) {
+			statuses[status].increment();
+		}
+	}
+
+	/**
+	 * Return the number of invocations ending with the given status
+	 */
+	public long count(int status) {
+		return (((status >= 0) && (status < statuses.length)) ? statuses[status].sum() : 0);
+	}
+
+	/**
+	 * Return the total number of invocations
+	 */
+	public long total() {
+		long total = 0;
+		for (LongAdder status : statuses) {
+			total += status.sum();
+		}
+
+		return total;
+	}
+
+	/**
+	 * Count an exception thrown by the command
+	 */
+	public void error(Throwable e) {
+		errors.increment();
+		lastError = e.toString();
+	}
+
+	/**
+	 * Return the number of exceptions thrown by the command
+	 */
+	public long errors() {
+		return errors.sum();
+	}
+
+	/**
+	 * Return the description of the last exception thrown by the command or null if none
+	 */
+	public String lastError() {
+		return lastError;
+	}
+
+	public LatencyHistogram parse() {
+		return parse;
+	}
+
+	public LatencyHistogram permission() {
+		return permission;
+	}
+
+	public LatencyHistogram execute() {
+		return execute;
+	}
+
+	/**
+	 * Clear all the counters and latencies
+	 */
+	public void reset() {
+		for (LongAdder status : statuses) {
+			status.reset();
+		}
+
+		parse.reset();
+		permission.reset();
+		execute.reset();
+		errors.reset();
+		lastError = null;
+	}
+
+	/**
+	 * Write the metrics to the given node
+	 */
+	public ObjectNode toJson(ObjectNode node) {
+		ObjectNode counts = node.putObject("statuses");
+		for (int t = 0; t < statuses.length; t++) {
+			counts.put(STATUS_LABELS[t], statuses[t].sum());
+		}
+
+		node.put("errors", errors());
+		node.put("last_error", lastError);
+		parse.toJson(node.putObject("parse"));
+		permission.toJson(node.putObject("permission"));
+		execute.toJson(node.putObject("execute"));
+		return node;
+	}
+
+	//###############
+	//ALL THE METRICS
+	//###############
+
+	/**
+	 * Return all the loaded commands and groups by path (exemple : "perms grant")
+	 */
+	public static Map<String, AbstractCommandHandler> handlers() {
+		Map<String, AbstractCommandHandler> res = new LinkedHashMap<>();
+		for (Map.Entry<String, AbstractCommandHandler> entry : Commands.getMap().entrySet()) {
+			collect(res, entry.getKey(), entry.getValue());
+		}
+
+		return res;
+	}
+
+	/**
+	 * Clear the metrics of all the commands
+	 */
+	public static void resetAll() {
+		for (AbstractCommandHandler handler : handlers().values()) {
+			handler.metrics.reset();
+		}
+	}
+
+	/**
+	 * Return the metrics of all the invoked commands as a JSON object, by command path
+	 */
+	public static ObjectNode allToJson() {
+		ObjectNode root = SFUtils.mapper.createObjectNode();
+		for (Map.Entry<String, AbstractCommandHandler> entry : handlers().entrySet()) {
+			CommandMetrics metrics = entry.getValue().metrics;
+			if (metrics.total() > 0) {
+				metrics.toJson(root.putObject(entry.getKey()));
+			}
+		}
+
+		return root;
+	}
+
+	/**
+	 * Return the metrics of the invoked commands as a human readable table, the slowest commands first
+	 *
+	 * @param limit The maximum number of commands to show
+	 */
+	public static String format(int limit) {
+		List<Map.Entry<String, AbstractCommandHandler>> entries = new ArrayList<>();
+		for (Map.Entry<String, AbstractCommandHandler> entry : handlers().entrySet()) {
+			if (entry.getValue().metrics.total() > 0) {
+				entries.add(entry);
+			}
+		}
+
+		if (entries.isEmpty()) {
+			return "No command invoked";
+		}
+
+		entries.sort(Comparator.comparingLong((Map.Entry<String, AbstractCommandHandler> e) -> e.getValue().metrics.execute.percentile(0.99)).reversed());
+
+		StringBuilder sb = new StringBuilder(128 * Math.min(limit, entries.size()));
+		sb.append(String.format("%-20s %7s %6s %6s %6s %9s %9s %9s%n", "command", "count", "error", "perm", "limit", "parse99", "perm99", "exec99"));
+
+		for (int t = 0; (t < entries.size()) && (t < limit); t++) {
+			String name = entries.get(t).getKey();
+			CommandMetrics m = entries.get(t).getValue().metrics;
+			sb.append(String.format("%-20s %7d %6d %6d %6d %7.2fms %7.2fms %7.2fms%n", name, m.total(), m.count(Commands.COMMAND_ERROR),
+					m.count(Commands.COMMAND_PERM_ERROR), m.count(Commands.COMMAND_RATE_LIMITED), m.parse.percentile(0.99) / 1000d,
+					m.permission.percentile(0.99) / 1000d, m.execute.percentile(0.99) / 1000d));
+		}
+
+		return sb.toString();
+	}
+
+	private static void collect(Map<String, AbstractCommandHandler> res, String path, AbstractCommandHandler handler) {
+		if (handler == null) {
+			return;
+		}
+
+		res.put(path, handler);
+		if (handler instanceof GroupedCommandHandler) {
+			for (Map.Entry<String, AbstractCommandHandler> sub : ((GroupedCommandHandler) handler).subCommands.entrySet()) {
+				collect(res, path + " " + sub.getKey(), sub.getValue());
+			}
+		}
+	}
+
+}
@@ -5,6 +5,7 @@ import net.shadowpie.sadiinso.sfc.commands.context.CommandContext;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 public class GroupedCommandHandler extends AbstractCommandHandler {
@@ -16,7 +17,7 @@ public class GroupedCommandHandler extends AbstractCommandHandler {
 	}
 	
 	public boolean addCommandHandler(AbstractCommandHandler handler) {
-		return (subCommands.put(handler.name.toLowerCase(), handler) == null);
+		return (subCommands.put(handler.name.toLowerCase(Locale.ROOT), handler) == null);
 	}
 
 	@Override
@@ -25,8 +26,21 @@ public class GroupedCommandHandler extends AbstractCommandHandler {
 		if(prefix == null) {
 			return Commands.COMMAND_SUCCESS;
 		} else {
-			AbstractCommandHandler handler = subCommands.get(prefix.toLowerCase());
-			return (handler == null ? Commands.COMMAND_NOT_FOUND : handler.execute(ctx.pullPrefix()));
+			AbstractCommandHandler handler = subCommands.get(prefix.toLowerCase(Locale.ROOT));
+			if(handler == null) {
+				return Commands.COMMAND_NOT_FOUND;
+			}
+			
+			// the verified permissions are those of the group, the sub command checks its own
+			boolean checked = ctx.arePermsChecked();
+			ctx.resetPermsChecked();
+			try {
+				return handler.execute(ctx.pullPrefix());
+			} finally {
+				if(checked) {
+					ctx.setPermsChecked();
+				}
+			}
 		}
 	}
 
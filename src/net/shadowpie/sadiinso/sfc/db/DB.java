@@ -2,10 +2,12 @@ package net.shadowpie.sadiinso.sfc.db;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import net.dv8tion.jda.internal.utils.JDALogger;
 import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.config.SFConfig.Config;
 import net.shadowpie.sadiinso.sfc.sfc.SFC;
+import net.shadowpie.sadiinso.sfc.utils.LatencyHistogram;
 import org.slf4j.Logger;
 
 import java.sql.Connection;
@@ -16,8 +18,13 @@ public class DB {
 	private static final Logger logger = JDALogger.getLog("DB");
 	
 	private static boolean init = false;
+	private static boolean embedded = false;
 	private static HikariDataSource ds;
 	
+	// time spent waiting for a connection of the pool
+	private static final LatencyHistogram poolWait = new LatencyHistogram();
+	private static long slowQueryThreshold = Long.MAX_VALUE;
+	
 	public static int init() {
 		Config cfg = SFConfig.queryConfig("database");
 		
@@ -40,18 +47,24 @@ public class DB {
 		
 		logger.info("Connecting to the database...");
 		
-		String driverClass;
-		String driverBase;
+		String flavour = cfg.getString("flavour").toLowerCase();
+		HikariConfig config = new HikariConfig();
 		
-		switch(cfg.getString("flavour").toLowerCase()) {
+		switch(flavour) {
 			case "mysql":
-				driverClass = "com.mysql.cj.jdbc.Driver";
-				driverBase = "jdbc:mysql://";
+				config.setDriverClassName("com.mysql.cj.jdbc.Driver");
+				configureServer(config, cfg, "jdbc:mysql://");
 				break;
 				
 			case "mariadb":
-				driverClass = "org.mariadb.jdbc.Driver";
-				driverBase = "jdbc:mariadb://";
+				config.setDriverClassName("org.mariadb.jdbc.Driver");
+				configureServer(config, cfg, "jdbc:mariadb://");
+				break;
+			
+			case "h2":
+				config.setDriverClassName("org.h2.Driver");
+				configureEmbedded(config, cfg);
+				embedded = true;
 				break;
 			
 			default:
@@ -59,21 +72,43 @@ public class DB {
 				return SFC.STOP_MODULE_ERROR;
 		}
 		
-		HikariConfig config = new HikariConfig();
-		config.setDriverClassName(driverClass);
+		ds = new HikariDataSource(config);
+		slowQueryThreshold = cfg.getLong("slow_query_ms", 100) * 1_000_000L;
+		
+		init = true;
+		return SFC.ALL_OK;
+	}
+	
+	/**
+	 * Configure the connection pool of an external database server
+	 */
+	private static void configureServer(HikariConfig config, Config cfg, String driverBase) {
 		config.setJdbcUrl(driverBase + cfg.getString("host") + "/" + cfg.getString("database") + "?serverTimezone=UTC");
 		config.setUsername(cfg.getString("user"));
 		config.setPassword(cfg.getString("pass"));
 		config.addDataSourceProperty("useServerPrepStmts", "true");
 		config.addDataSourceProperty("cachePrepStmts", "true");
-        config.addDataSourceProperty("prepStmtCacheSize", "25");
-        config.addDataSourceProperty("prepStmtCacheSqlLimit", "1024");
-        config.setPoolName("SFCPool");
-        config.setConnectionInitSql("SET NAMES utf8mb4");
-        ds = new HikariDataSource(config);
-		
-		init = true;
-		return SFC.ALL_OK;
+		config.addDataSourceProperty("prepStmtCacheSize", "25");
+		config.addDataSourceProperty("prepStmtCacheSqlLimit", "1024");
+		config.setPoolName("SFCPool");
+		config.setConnectionInitSql("SET NAMES utf8mb4");
+	}
+	
+	/**
+	 * Configure the connection pool of the embedded database (H2 in MySQL compatibility mode)
+	 * <p>
+	 * The database is stored in the file given by the "file" entry (default "sfc_db") and the
+	 * pool is kept small as there is no network latency to hide.
+	 * </p>
+	 */
+	private static void configureEmbedded(HikariConfig config, Config cfg) {
+		config.setJdbcUrl("jdbc:h2:file:" + cfg.getString("file", "sfc_db") + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE");
+		config.setUsername(cfg.getString("user"));
+		config.setPassword(cfg.getString("pass"));
+		config.setMaximumPoolSize(cfg.getInt("pool_size", 4));
+		config.setMinimumIdle(1);
+		config.setConnectionTimeout(5_000);
+		config.setPoolName("SFCEmbeddedPool");
 	}
 	
 	/**
@@ -83,6 +118,42 @@ public class DB {
 		return init;
 	}
 	
+	/**
+	 * Return the maximum number of connections of the pool or 0 if the DB connection is down
+	 */
+	public static int getPoolSize() {
+		return (init ? ds.getMaximumPoolSize() : 0);
+	}
+	
+	/**
+	 * @return whether the database is embedded in the bot process (H2) or not
+	 */
+	public static boolean isEmbedded() {
+		return embedded;
+	}
+	
+	/**
+	 * Return the histogram of the time spent waiting for a pool connection in {@link #getConn()}
+	 */
+	public static LatencyHistogram getPoolWait() {
+		return poolWait;
+	}
+	
+	/**
+	 * Return the pool statistics (active, idle and waiting threads) or null if the DB connection is down
+	 */
+	public static HikariPoolMXBean getPoolStats() {
+		return (init ? ds.getHikariPoolMXBean() : null);
+	}
+	
+	/**
+	 * Return the duration in nanoseconds above which a database operation is logged as slow
+	 * (the "slow_query_ms" entry of the database configuration, default 100ms)
+	 */
+	public static long getSlowQueryThreshold() {
+		return slowQueryThreshold;
+	}
+	
 	/**
 	 * Shutdown the DB connection
 	 */
@@ -98,11 +169,17 @@ public class DB {
 	 */
 	public static Connection getConn() {
 		if(init) {
+			long start = System.nanoTime();
 			try {
 				return ds.getConnection();
 			} catch (SQLException e) {
 				logger.error("Error while retrieving a mysql connection", e);
 				return null;
+			} finally {
+				long wait = poolWait.since(start);
+				if (wait > slowQueryThreshold) {
+					logger.warn("Waited " + (wait / 1_000_000L) + "ms for a database connection, the pool may be too small");
+				}
 			}
 		} else {
 			return null;
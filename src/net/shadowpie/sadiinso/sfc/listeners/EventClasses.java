@@ -0,0 +1,47 @@
+package net.shadowpie.sadiinso.sfc.listeners;
+
+import net.dv8tion.jda.api.events.GenericEvent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Flattened hierarchy of the event classes, used to build the dispatch tables of the listeners
+ */
+public final class EventClasses {
+
+	// Suppresses default constructor, ensuring non-instantiability.
+	private EventClasses() {}
+
+	/**
+	 * Return the event types an event of the given class is an instance of: the class itself and its
+	 * superclasses, from the most specific one, followed by all their interfaces extending {@link GenericEvent}
+	 * @param clazz The concrete event class
+	 */
+	public static List<Class<?>> of(Class<?> clazz) {
+		Set<Class<?>> res = new LinkedHashSet<>();
+		Deque<Class<?>> interfaces = new ArrayDeque<>();
+
+		for(Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			res.add(c);
+			Collections.addAll(interfaces, c.getInterfaces());
+		}
+
+		// breadth first, the interfaces closer to the class come first
+		while(!interfaces.isEmpty()) {
+			Class<?> c = interfaces.poll();
+			if(GenericEvent.class.isAssignableFrom(c) && res.add(c)) {
+				Collections.addAll(interfaces, c.getInterfaces());
+			}
+		}
+
+		res.remove(Object.class);
+		return new ArrayList<>(res);
+	}
+
+}
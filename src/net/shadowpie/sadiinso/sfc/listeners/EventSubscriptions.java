@@ -0,0 +1,78 @@
+package net.shadowpie.sadiinso.sfc.listeners;
+
+import net.dv8tion.jda.api.events.Event;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.events.message.priv.PrivateMessageReceivedEvent;
+import net.dv8tion.jda.api.events.message.react.GenericMessageReactionEvent;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
+import net.shadowpie.sadiinso.sfc.listeners.eventwaiter.EventWaiter;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Gateway intents and cache flags required by the registered handlers
+ * <p>
+ * When the "event_subscriptions" entry of the configuration is enabled, the bot only receives the
+ * events handled by the {@link SFCListener} handlers, the classes declared to the {@link EventWaiter}
+ * and the events used by the library itself (commands and menus). The handlers and waiter classes
+ * must therefore be registered before {@link net.shadowpie.sadiinso.sfc.sfc.SFC#init() SFC.init()}.
+ * A handler of a super type which does not map to an intent (ex : GenericGuildEvent) only receives
+ * the events enabled by the other needs, a handler of {@link GenericEvent} enables every intent.
+ * </p>
+ */
+public final class EventSubscriptions {
+
+	// events used by the library: the commands and the button menus
+	private static final Set<Class<? extends GenericEvent>> BUILT_IN = Set.of(GuildMessageReceivedEvent.class, PrivateMessageReceivedEvent.class,
+			GenericMessageReactionEvent.class);
+
+	// Suppresses default constructor, ensuring non-instantiability.
+	private EventSubscriptions() {}
+
+	/**
+	 * Return the event classes handled by the given listener, declared to the event waiter or used by the library
+	 */
+	public static Set<Class<? extends GenericEvent>> requiredEvents(SFCListener listener) {
+		Set<Class<? extends GenericEvent>> res = new HashSet<>(BUILT_IN);
+		res.addAll(listener.handledEvents());
+		res.addAll(EventWaiter.requiredEvents());
+		return res;
+	}
+
+	/**
+	 * Return the gateway intents required by the given listener
+	 * <p>
+	 * The members intent is always enabled, the permissions are resolved from the cached members.
+	 * </p>
+	 */
+	public static EnumSet<GatewayIntent> intents(SFCListener listener) {
+		Set<Class<? extends GenericEvent>> events = requiredEvents(listener);
+		if(events.contains(GenericEvent.class) || events.contains(Event.class)) {
+			return EnumSet.allOf(GatewayIntent.class);
+		}
+
+		EnumSet<GatewayIntent> res = GatewayIntent.fromEvents(events);
+		res.add(GatewayIntent.GUILD_MEMBERS);
+		return res;
+	}
+
+	/**
+	 * Return the cache flags that can not be filled with the given intents
+	 */
+	public static EnumSet<CacheFlag> disabledCache(Set<GatewayIntent> intents) {
+		EnumSet<CacheFlag> res = EnumSet.noneOf(CacheFlag.class);
+		for(CacheFlag flag : CacheFlag.values()) {
+			GatewayIntent required = flag.getRequiredIntent();
+			if((required != null) && !intents.contains(required)) {
+				res.add(flag);
+			}
+		}
+
+		return res;
+	}
+
+}
@@ -1,6 +1,6 @@
 package net.shadowpie.sadiinso.sfc.listeners;
 
-import net.dv8tion.jda.api.events.Event;
+import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.events.GenericEvent;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.dv8tion.jda.api.events.message.priv.PrivateMessageReceivedEvent;
@@ -8,6 +8,7 @@ import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.dv8tion.jda.internal.utils.JDALogger;
 import net.shadowpie.sadiinso.sfc.commands.Commands;
 import net.shadowpie.sadiinso.sfc.commands.context.CommandContext;
+import net.shadowpie.sadiinso.sfc.commands.context.CommandPrefix;
 import net.shadowpie.sadiinso.sfc.commands.context.DiscordCommandContext;
 import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.listeners.eventwaiter.EventWaiter;
@@ -25,6 +26,9 @@ public class SFCListener extends ListenerAdapter {
 	private final List<AbstractFilter> guildFilters = new ArrayList<>();
 
 	private final Map<Class<? extends GenericEvent>, List<CustomEventHandler<? extends GenericEvent>>> customHandlers = new HashMap<>();
+	
+	// handlers of each concrete event class, replaced when a handler is added
+	private volatile ClassValue<CustomEventHandler<?>[]> dispatchTable = newDispatchTable();
 
 	/**
 	 * Add a filter to received private messages
@@ -51,17 +55,51 @@ public class SFCListener extends ListenerAdapter {
 	 * @param handler The handler to add
 	 */
 	public <T extends GenericEvent> void addEventHandler(Class<T> clazz, CustomEventHandler<T> handler) {
-		List<CustomEventHandler<?>> handlers = customHandlers.computeIfAbsent(clazz, e -> new LinkedList<>());
-		handlers.add(handler);
+		synchronized (customHandlers) {
+			List<CustomEventHandler<?>> handlers = customHandlers.computeIfAbsent(clazz, e -> new LinkedList<>());
+			handlers.add(handler);
+			dispatchTable = newDispatchTable();
+		}
 	}
 
 	/**
-	 * Custom getter with auto cast
+	 * Return the event classes with at least one handler
 	 */
-	@SuppressWarnings("unchecked")
-	private <T extends GenericEvent> List<CustomEventHandler<T>> getHandlers(Class<T> clazz) {
-		List<CustomEventHandler<T>> res = (List<CustomEventHandler<T>>) (Object) customHandlers.get(clazz);
-		return (res == null ? Collections.EMPTY_LIST : res);
+	public Set<Class<? extends GenericEvent>> handledEvents() {
+		synchronized (customHandlers) {
+			return new HashSet<>(customHandlers.keySet());
+		}
+	}
+	
+	/**
+	 * Return a table resolving the handlers of a concrete event class once: the generic handlers,
+	 * then the handlers of the class, its superclasses and its interfaces
+	 */
+	private ClassValue<CustomEventHandler<?>[]> newDispatchTable() {
+		return new ClassValue<>() {
+			@Override
+			protected CustomEventHandler<?>[] computeValue(Class<?> type) {
+				List<CustomEventHandler<?>> res = new ArrayList<>();
+				
+				synchronized (customHandlers) {
+					addHandlers(res, GenericEvent.class);
+					for (Class<?> clazz : EventClasses.of(type)) {
+						if (clazz != GenericEvent.class) {
+							addHandlers(res, clazz);
+						}
+					}
+				}
+				
+				return res.toArray(new CustomEventHandler<?>[0]);
+			}
+		};
+	}
+	
+	private void addHandlers(List<CustomEventHandler<?>> res, Class<?> clazz) {
+		List<CustomEventHandler<?>> handlers = customHandlers.get(clazz);
+		if (handlers != null) {
+			res.addAll(handlers);
+		}
 	}
 	
 	/**
@@ -77,19 +115,9 @@ public class SFCListener extends ListenerAdapter {
 		// notify event waiter
 		EventWaiter.onEvent(event);
 		
-		// execute generic handlers
-		for (CustomEventHandler<GenericEvent> handler : getHandlers(GenericEvent.class)) {
-			handler.handle(event);
-		}
-		
-		// execute specific handlers
-		Class<? extends GenericEvent> clazz = event.getClass();
-		while(clazz != Event.class) {
-			for (CustomEventHandler handler : getHandlers(clazz)) {
-				handler.handle(event);
-			}
-			
-			clazz = (Class<? extends Event>) clazz.getSuperclass();
+		// execute the generic then specific handlers, the table only holds handlers of the event types
+		for (CustomEventHandler<?> handler : dispatchTable.get(event.getClass())) {
+			((CustomEventHandler<GenericEvent>) handler).handle(event);
 		}
 	}
 
@@ -99,28 +127,7 @@ public class SFCListener extends ListenerAdapter {
 		if (event.getMessage().getContentRaw().isEmpty() || event.getAuthor().isBot())
 			return;
 		
-		// apply filters
-		for (AbstractFilter filter : privateFilters) {
-			if (!filter.applyFilter(event.getMessage())) {
-				return;
-			}
-		}
-		
-		if (SFConfig.enable_commands()) {
-
-			// build command context (null if the message is not a command)
-			CommandContext ctx = null;
-			try {
-				 ctx = DiscordCommandContext.getContext(event.getMessage());
-			} catch(Exception e) {
-				logger.error("Error while building a CommandContext; user=" + event.getAuthor().getName() + " (" + event.getAuthor().getId() + "); msg=\"" + event.getMessage().getContentRaw() + "\"", e);
-			}
-
-			// execute the command
-			if (ctx != null) {
-				Commands.execute(ctx);
-			}
-		}
+		onMessage(event.getMessage(), privateFilters);
 	}
 
 	@Override
@@ -130,28 +137,47 @@ public class SFCListener extends ListenerAdapter {
 			return;
 		}
 
-		// apply filters
-		for (AbstractFilter filter : guildFilters) {
-			if (!filter.applyFilter(event.getMessage())) {
+		onMessage(event.getMessage(), guildFilters);
+	}
+	
+	private void onMessage(Message message, List<AbstractFilter> filters) {
+		if (!SFConfig.enable_commands()) {
+			return;
+		}
+		
+		// drop the messages that are not commands before applying the filters or allocating anything
+		String content = message.getContentRaw();
+		CommandPrefix prefix = CommandPrefix.get();
+		boolean useMention = false;
+		int caller = prefix.matchTag(content);
+		if (caller == CommandPrefix.NO_MATCH) {
+			caller = prefix.matchMention(content);
+			if (caller == CommandPrefix.NO_MATCH) {
 				return;
 			}
+			
+			useMention = true;
 		}
-
-		// execute command
-		if (SFConfig.enable_commands()) {
-			// build command context (null if the message is not a command)
-			CommandContext ctx = null;
-			try {
-				ctx = DiscordCommandContext.getContext(event.getMessage());
-			} catch(Exception e) {
-				logger.error("Error while building a CommandContext; user=" + event.getAuthor().getName() + " (" + event.getAuthor().getId() + "); msg=\"" + event.getMessage().getContentRaw() + "\"", e);
-			}
-
-			// execute the command
-			if (ctx != null) {
-				Commands.execute(ctx);
+		
+		// apply filters
+		for (AbstractFilter filter : filters) {
+			if (!filter.applyFilter(message)) {
+				return;
 			}
 		}
+		
+		// build command context (null if the message is not a command)
+		CommandContext ctx = null;
+		try {
+			ctx = DiscordCommandContext.getContext(message, caller, useMention);
+		} catch(Exception e) {
+			logger.error("Error while building a CommandContext; user=" + message.getAuthor().getName() + " (" + message.getAuthor().getId() + "); msg=\"" + content + "\"", e);
+		}
+		
+		// execute the command
+		if (ctx != null) {
+			Commands.executeAsync(ctx);
+		}
 	}
 	
 }
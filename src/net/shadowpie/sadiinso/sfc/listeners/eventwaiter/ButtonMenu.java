@@ -84,16 +84,11 @@ public class ButtonMenu extends AbstractMenu {
 			}
 		}
 		
-		EventWaiter.attach(GenericMessageReactionEvent.class).filter(event -> {
+		// only the reactions to the message of this menu are routed to the node
+		EventWaiter.attach(GenericMessageReactionEvent.class).message(m.getIdLong()).filter(event -> {
 			if (event.getUser() == null) {
 				return false;
 			}
-			
-			// If the message is not the same as the ButtonMenu
-			// currently being displayed.
-			if (!event.getMessageId().equals(m.getId())) {
-				return false;
-			}
 
 			// If the reaction is an Emote we get the Snowflake,
 			// otherwise we get the unicode value.
@@ -2,9 +2,25 @@ package net.shadowpie.sadiinso.sfc.listeners.eventwaiter;
 
 
 import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.message.GenericMessageEvent;
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.api.events.message.guild.GenericGuildMessageEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.events.message.guild.react.GenericGuildMessageReactionEvent;
+import net.dv8tion.jda.api.events.message.priv.GenericPrivateMessageEvent;
+import net.dv8tion.jda.api.events.message.priv.PrivateMessageReceivedEvent;
+import net.dv8tion.jda.api.events.message.priv.react.GenericPrivateMessageReactionEvent;
+import net.dv8tion.jda.api.events.message.react.GenericMessageReactionEvent;
+import net.dv8tion.jda.api.events.user.GenericUserEvent;
+import net.shadowpie.sadiinso.sfc.listeners.EventClasses;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.LongConsumer;
 import java.util.function.Predicate;
@@ -15,33 +31,151 @@ import java.util.function.Predicate;
  * To subscribe to an event, you need to call {@link #attach(Class) attach(Class)} with the specified event class
  * This function will return you a {@link EventWaiter.EWNodeBuilder EWNodeBuilder} that will allow you to specify the actions to be taken
  *
+ * The nodes bound to a message, a channel or a user (see {@link EWNodeBuilder#message(long)}) are indexed by id,
+ * an event only reaches the nodes bound to its ids and the nodes without id
+ *
  */
 public class EventWaiter {
 	
-	@SuppressWarnings("rawtypes")
-	private static final Map<Class<? extends GenericEvent>, List<EWNode>> nodeMap = new ConcurrentHashMap<>();
+	// kinds of id a node can be bound to, by selectivity
+	private static final int MESSAGE = 0;
+	private static final int CHANNEL = 1;
+	private static final int USER = 2;
+	private static final int NO_KEY = -1;
+	
+	// owns the timeouts of the nodes, the cancelled timeouts are dropped at once
+	private static final ScheduledThreadPoolExecutor timer = createTimer();
+	
+	private static final Map<Class<? extends GenericEvent>, Subscriptions> nodeMap = new ConcurrentHashMap<>();
+	
+	// event classes the nodes will be attached to, declared before the gateway connection
+	private static final Set<Class<? extends GenericEvent>> required = ConcurrentHashMap.newKeySet();
+	
+	// subscriptions of each concrete event class, replaced when an event class is attached for the first time
+	private static volatile ClassValue<Subscriptions[]> dispatchTable = newDispatchTable();
 	
 	public static <T extends GenericEvent> EWNodeBuilder<T> attach(Class<T> clazz) {
 		return new EWNodeBuilder<>(clazz);
 	}
 	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	/**
+	 * Declare the event classes the nodes will be attached to, when the gateway intents are computed
+	 * from the subscriptions (see {@link net.shadowpie.sadiinso.sfc.listeners.EventSubscriptions})
+	 * the classes must be declared before the initialization of the library
+	 */
+	@SafeVarargs
+	public static void require(Class<? extends GenericEvent>... classes) {
+		for(Class<? extends GenericEvent> clazz : classes) {
+			required.add(clazz);
+		}
+	}
+	
+	/**
+	 * Return the declared event classes and the event classes nodes are attached to
+	 */
+	public static Set<Class<? extends GenericEvent>> requiredEvents() {
+		Set<Class<? extends GenericEvent>> res = new HashSet<>(required);
+		res.addAll(nodeMap.keySet());
+		return res;
+	}
+	
 	public static void onEvent(GenericEvent event) {
-		long curTime = System.currentTimeMillis();
-		Class<?> clazz = event.getClass();
+		for(Subscriptions subs : dispatchTable.get(event.getClass()))
+			subs.dispatch(event);
+	}
+	
+	private static ClassValue<Subscriptions[]> newDispatchTable() {
+		return new ClassValue<>() {
+			@Override
+			protected Subscriptions[] computeValue(Class<?> type) {
+				List<Subscriptions> res = new ArrayList<>();
+				for(Class<?> clazz : EventClasses.of(type)) {
+					Subscriptions subs = nodeMap.get(clazz);
+					if(subs != null)
+						res.add(subs);
+				}
+				
+				return res.toArray(Subscriptions[]::new);
+			}
+		};
+	}
+	
+	private static Subscriptions subscriptions(Class<? extends GenericEvent> clazz) {
+		Subscriptions subs = nodeMap.get(clazz);
+		if(subs == null) {
+			Subscriptions created = new Subscriptions();
+			subs = nodeMap.putIfAbsent(clazz, created);
+			
+			// the tables resolved before do not contain the new class
+			if(subs == null) {
+				subs = created;
+				dispatchTable = newDispatchTable();
+			}
+		}
 		
-		while(clazz != null) {
-			List<EWNode> nodes = nodeMap.get(clazz);
-			if(nodes != null)
-				nodes.removeIf(e -> (e.expired(curTime) || e.attempt(event)));
+		return subs;
+	}
+	
+	private static ScheduledThreadPoolExecutor createTimer() {
+		ScheduledThreadPoolExecutor res = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread th = new Thread(r, "EventWaiter-Timer");
+			th.setDaemon(true);
+			return th;
+		});
+		
+		res.setRemoveOnCancelPolicy(true);
+		return res;
+	}
+	
+	/**
+	 * Return the id of the given kind carried by the event or 0 if the event does not carry one
+	 */
+	private static long key(GenericEvent event, int kind) {
+		switch(kind) {
+			case MESSAGE:
+				if(event instanceof GenericMessageEvent)
+					return ((GenericMessageEvent) event).getMessageIdLong();
+				if(event instanceof GenericGuildMessageEvent)
+					return ((GenericGuildMessageEvent) event).getMessageIdLong();
+				if(event instanceof GenericPrivateMessageEvent)
+					return ((GenericPrivateMessageEvent) event).getMessageIdLong();
+				return 0;
+			
+			case CHANNEL:
+				if(event instanceof GenericMessageEvent)
+					return ((GenericMessageEvent) event).getChannel().getIdLong();
+				if(event instanceof GenericGuildMessageEvent)
+					return ((GenericGuildMessageEvent) event).getChannel().getIdLong();
+				if(event instanceof GenericPrivateMessageEvent)
+					return ((GenericPrivateMessageEvent) event).getChannel().getIdLong();
+				return 0;
+			
+			case USER:
+				if(event instanceof GenericMessageReactionEvent)
+					return ((GenericMessageReactionEvent) event).getUserIdLong();
+				if(event instanceof GenericGuildMessageReactionEvent)
+					return ((GenericGuildMessageReactionEvent) event).getUserIdLong();
+				if(event instanceof GenericPrivateMessageReactionEvent)
+					return ((GenericPrivateMessageReactionEvent) event).getUserIdLong();
+				if(event instanceof MessageReceivedEvent)
+					return ((MessageReceivedEvent) event).getAuthor().getIdLong();
+				if(event instanceof GuildMessageReceivedEvent)
+					return ((GuildMessageReceivedEvent) event).getAuthor().getIdLong();
+				if(event instanceof PrivateMessageReceivedEvent)
+					return ((PrivateMessageReceivedEvent) event).getAuthor().getIdLong();
+				if(event instanceof GenericUserEvent)
+					return ((GenericUserEvent) event).getUser().getIdLong();
+				return 0;
 			
-			clazz = clazz.getSuperclass();
+			default:
+				return 0;
 		}
 	}
 	
 	public static class EWNodeBuilder<T extends GenericEvent> {
 		private final Class<? extends GenericEvent> clazz;
 		private final List<Predicate<T>> conditions;
+		private final long[] keys;
 		private Consumer<T> action;
 		private LongConsumer expireAction;
 		private long timeout;
@@ -49,6 +183,7 @@ public class EventWaiter {
 		private EWNodeBuilder(Class<? extends GenericEvent> clazz) {
 			this.clazz = clazz;
 			conditions = new LinkedList<>();
+			keys = new long[3];
 			this.timeout = -1;
 		}
 		
@@ -57,6 +192,30 @@ public class EventWaiter {
 			return this;
 		}
 		
+		/**
+		 * Only accept the events related to the given message, the events that do not carry a message id are ignored
+		 */
+		public EWNodeBuilder<T> message(long messageId) {
+			keys[MESSAGE] = messageId;
+			return this;
+		}
+		
+		/**
+		 * Only accept the events from the given channel, the events that do not carry a channel id are ignored
+		 */
+		public EWNodeBuilder<T> channel(long channelId) {
+			keys[CHANNEL] = channelId;
+			return this;
+		}
+		
+		/**
+		 * Only accept the events from the given user, the events that do not carry a user id are ignored
+		 */
+		public EWNodeBuilder<T> user(long userId) {
+			keys[USER] = userId;
+			return this;
+		}
+		
 		public EWNodeBuilder<T> onEvent(Consumer<T> action) {
 			this.action = action;
 			return this;
@@ -82,79 +241,194 @@ public class EventWaiter {
 		
 		@SuppressWarnings({ "unchecked", "rawtypes" })
 		public EWNode<T> subscribe(int runCount) {
-			List<EWNode> nodes = nodeMap.computeIfAbsent(clazz, e -> createList());
+			Subscriptions subs = subscriptions(clazz);
 			
 			if(action == null)
 				throw new RuntimeException("onEvent action cannot be null");
 			
 			Predicate<T>[] filters = (conditions.isEmpty() ? null : conditions.toArray(Predicate[]::new));
-			EWNode cnode = new EWNode(filters, action, expireAction, runCount, timeout);
-			nodes.add(cnode);
+			EWNode cnode = new EWNode(subs, filters, keys.clone(), action, expireAction, runCount);
+			subs.add(cnode);
+			
+			if(timeout != -1)
+				cnode.schedule(timeout);
 			
 			return cnode;
 		}
 	}
 	
+	/**
+	 * The nodes subscribed to an event class, the nodes bound to an id are indexed by their most selective id
+	 * <p>
+	 * The nodes are kept in copy-on-write arrays, the events are dispatched to a snapshot without
+	 * any lock. A node is deleted logically once its last call is claimed or it expires, then
+	 * removed from the arrays.
+	 * </p>
+	 */
 	@SuppressWarnings("rawtypes")
-	private static List<EWNode> createList() {
-		return Collections.synchronizedList(new ArrayList<>());
+	private static final class Subscriptions {
+		private static final EWNode[] NO_NODES = new EWNode[0];
+		
+		private final AtomicReference<EWNode[]> nodes = new AtomicReference<>(NO_NODES);
+		@SuppressWarnings("unchecked")
+		private final Map<Long, EWNode[]>[] keyed = new Map[] { new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>() };
+		
+		private void add(EWNode node) {
+			if(node.kind == NO_KEY) {
+				nodes.updateAndGet(a -> with(a, node));
+			} else {
+				keyed[node.kind].merge(node.keys[node.kind], new EWNode[] { node }, (a, b) -> with(a, node));
+			}
+		}
+		
+		private void remove(EWNode node) {
+			if(node.kind == NO_KEY) {
+				nodes.updateAndGet(a -> without(a, node));
+			} else {
+				keyed[node.kind].computeIfPresent(node.keys[node.kind], (k, a) -> {
+					EWNode[] res = without(a, node);
+					return ((res.length == 0) ? null : res);
+				});
+			}
+		}
+		
+		@SuppressWarnings("unchecked")
+		private void dispatch(GenericEvent event) {
+			for(EWNode node : nodes.get())
+				node.attempt(event);
+			
+			for(int kind = 0; kind < keyed.length; kind++) {
+				Map<Long, EWNode[]> map = keyed[kind];
+				if(map.isEmpty())
+					continue;
+				
+				long key = key(event, kind);
+				EWNode[] candidates = ((key == 0) ? null : map.get(key));
+				if(candidates == null)
+					continue;
+				
+				for(EWNode node : candidates)
+					node.attempt(event);
+			}
+		}
+		
+		private static EWNode[] with(EWNode[] nodes, EWNode node) {
+			EWNode[] res = Arrays.copyOf(nodes, nodes.length + 1);
+			res[nodes.length] = node;
+			return res;
+		}
+		
+		private static EWNode[] without(EWNode[] nodes, EWNode node) {
+			for(int t = 0; t < nodes.length; t++) {
+				if(nodes[t] == node) {
+					EWNode[] res = new EWNode[nodes.length - 1];
+					System.arraycopy(nodes, 0, res, 0, t);
+					System.arraycopy(nodes, t + 1, res, t, nodes.length - t - 1);
+					return res;
+				}
+			}
+			
+			return nodes;
+		}
 	}
 	
 	public static class EWNode<T extends GenericEvent> {
+		private final Subscriptions subs;
 		private final Predicate<T>[] conditions;
+		private final long[] keys;
+		private final int kind;
 		private final Consumer<T> action;
 		private final LongConsumer expireAction;
-		private long expire;
-		private int remainCall;
 		
-		private EWNode(Predicate<T>[] conditions, Consumer<T> action, LongConsumer expireAction, int runCount, long timeout) {
+		// the remaining calls, -1 for ever and 0 once the node is deleted
+		private final AtomicInteger remainCall;
+		private volatile ScheduledFuture<?> timer;
+		
+		private EWNode(Subscriptions subs, Predicate<T>[] conditions, long[] keys, Consumer<T> action, LongConsumer expireAction, int runCount) {
+			this.subs = subs;
 			this.conditions = conditions;
+			this.keys = keys;
 			this.action = action;
 			this.expireAction = expireAction;
-			this.remainCall = runCount;
+			this.remainCall = new AtomicInteger((runCount < 0) ? -1 : Math.max(1, runCount));
 			
-			if(timeout == -1) {
-				this.expire = timeout;
-			} else {
-				this.expire = System.currentTimeMillis() + timeout;
+			int kind = NO_KEY;
+			for(int t = keys.length - 1; t >= 0; t--) {
+				if(keys[t] != 0)
+					kind = t;
 			}
+			
+			this.kind = kind;
 		}
 		
-		private boolean expired(long currentTime) {
-			if((expire <= currentTime) && (expire != -1)) {
-				expireAction.accept(currentTime);
-				return true;
-			}
+		private void schedule(long timeout) {
+			timer = EventWaiter.timer.schedule(this::expire, Math.max(0, timeout), TimeUnit.MILLISECONDS);
+			
+			// the node may have been deleted before its timer was set
+			if(remainCall.get() == 0)
+				timer.cancel(false);
+		}
+		
+		private void expire() {
+			if(remainCall.getAndSet(0) == 0)
+				return;
+			
+			release();
+			if(expireAction != null)
+				expireAction.accept(System.currentTimeMillis());
+		}
+		
+		private void release() {
+			ScheduledFuture<?> t = timer;
+			if(t != null)
+				t.cancel(false);
 			
-			return false;
+			subs.remove(this);
 		}
 		
-		private boolean attempt(T event) {
+		private void attempt(T event) {
+			if(remainCall.get() == 0)
+				return;
+			
+			// the index only checked the most selective id
+			for(int t = kind + 1; t < keys.length; t++) {
+				if((keys[t] != 0) && (keys[t] != key(event, t))) {
+					return;
+				}
+			}
+			
 			if(conditions != null) {
 				try {
 					for (Predicate<T> condition : conditions) {
 						if (!condition.test(event)) {
-							return false;
+							return;
 						}
 					}
 				} catch (Exception e) {
 					e.printStackTrace();
-					return false;
+					return;
 				}
 			}
 			
-			action.accept(event);
+			// claim a call, the event threads may race for the last one
+			int remain;
+			do {
+				remain = remainCall.get();
+				if(remain == 0)
+					return;
+			} while((remain > 0) && !remainCall.compareAndSet(remain, remain - 1));
 			
-			if(remainCall <= -1) {
-				return false;
-			} else {
-				--remainCall;
-				return (remainCall <= 0);
-			}
+			if(remain == 1)
+				release();
+			
+			action.accept(event);
 		}
 		
+		/**
+		 * Unsubscribe the node at once, the expire action is executed if the node was still subscribed
+		 */
 		public void unsubscribe() {
-			expire = 0;
+			expire();
 		}
 	}
 	
@@ -0,0 +1,285 @@
+package net.shadowpie.sadiinso.sfc.permissions;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the {@link Permissions#hasPerm(long, long, int[])} answers
+ * <p>
+ * Entries are sharded by guild, each shard is an LRU map bounded in size and every
+ * entry expire after a fixed amount of time. The shards are invalidated by the
+ * {@link Permissions} grant/revoke methods.
+ * </p>
+ */
+public final class PermissionCache {
+
+	private final int maxEntries;
+	private final long ttl;
+
+	private final TLongObjectHashMap<Shard> shards = new TLongObjectHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	// incremented on each invalidation, prevent a check started before a grant/revoke to store its answer
+	private volatile long generation = 0;
+
+	/**
+	 * @param maxEntries The maximum number of entries per guild
+	 * @param ttl The time to live of an entry in milliseconds
+	 */
+	PermissionCache(int maxEntries, long ttl) {
+		this.maxEntries = maxEntries;
+		this.ttl = ttl * 1_000_000L;
+	}
+
+	//#######
+	//LOOKUPS
+	//#######
+
+	/**
+	 * Return the cached answer for the given check or null if it is not cached
+	 *
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param roles The roles of the user (can be null)
+	 * @param node The permission node (deepest node of its chain)
+	 */
+	Boolean get(long serverid, long userid, long[] roles, int node) {
+		Shard shard = getShard(serverid, false);
+
+		if (shard != null) {
+			synchronized (shard) {
+				Key key = new Key(userid, roles, node);
+				Entry entry = shard.get(key);
+
+				if (entry != null) {
+					if (entry.expire - System.nanoTime() > 0) {
+						hits.increment();
+						return entry.value;
+					}
+
+					shard.remove(key);
+					evictions.increment();
+				}
+			}
+		}
+
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Return the current invalidation generation, to be passed to {@link #put(long, long, long[], int, boolean, long)}
+	 */
+	long generation() {
+		return generation;
+	}
+
+	/**
+	 * Store the answer of the given check
+	 *
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param roles The roles of the user (can be null)
+	 * @param node The permission node (deepest node of its chain)
+	 * @param value The answer
+	 * @param gen The generation read before computing the answer
+	 */
+	void put(long serverid, long userid, long[] roles, int node, boolean value, long gen) {
+		Shard shard = getShard(serverid, true);
+
+		synchronized (shard) {
+			if (gen == generation) {
+				shard.put(new Key(userid, roles, node), new Entry(value, System.nanoTime() + ttl));
+			}
+		}
+	}
+
+	//############
+	//INVALIDATION
+	//############
+
+	/**
+	 * Remove all the entries of the given user
+	 */
+	void invalidateUser(long serverid, long userid) {
+		++generation;
+
+		Shard shard = getShard(serverid, false);
+		if (shard == null) {
+			return;
+		}
+
+		synchronized (shard) {
+			shard.keySet().removeIf(key -> (key.userid == userid));
+		}
+	}
+
+	/**
+	 * Remove all the entries of the users having the given role
+	 */
+	void invalidateRole(long serverid, long roleid) {
+		++generation;
+
+		Shard shard = getShard(serverid, false);
+		if (shard == null) {
+			return;
+		}
+
+		synchronized (shard) {
+			shard.keySet().removeIf(key -> key.hasRole(roleid));
+		}
+	}
+
+	/**
+	 * Remove all the entries of the given guild
+	 */
+	synchronized void invalidateGuild(long serverid) {
+		++generation;
+		shards.remove(serverid);
+	}
+
+	/**
+	 * Remove all the entries
+	 */
+	synchronized void invalidateAll() {
+		++generation;
+		shards.clear();
+	}
+
+	//########
+	//COUNTERS
+	//########
+
+	/**
+	 * Return the number of checks answered by the cache
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Return the number of checks not answered by the cache
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Return the number of entries removed because of the size limit or the TTL
+	 */
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Return the current number of cached entries
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for (Shard shard : shards.valueCollection()) {
+			synchronized (shard) {
+				size += shard.size();
+			}
+		}
+
+		return size;
+	}
+
+	//#######
+	//HELPERS
+	//#######
+
+	private synchronized Shard getShard(long serverid, boolean create) {
+		Shard shard = shards.get(serverid);
+		if ((shard == null) && create) {
+			shard = new Shard();
+			shards.put(serverid, shard);
+		}
+
+		return shard;
+	}
+
+	/**
+	 * LRU map of a single guild
+	 */
+	private final class Shard extends LinkedHashMap<Key, Entry> {
+		private static final long serialVersionUID = 1L;
+
+		private Shard() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+			if (size() > maxEntries) {
+				evictions.increment();
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+	private static final class Key {
+		private final long userid;
+		private final long[] roles;
+		private final int node;
+		private final int hash;
+
+		private Key(long userid, long[] roles, int node) {
+			this.userid = userid;
+			this.roles = roles;
+			this.node = node;
+			this.hash = (31 * (31 * Long.hashCode(userid) + Arrays.hashCode(roles)) + node);
+		}
+
+		private boolean hasRole(long roleid) {
+			if (roles != null) {
+				for (long role : roles) {
+					if (role == roleid) {
+						return true;
+					}
+				}
+			}
+
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			Key key = (Key) obj;
+			return ((hash == key.hash) && (userid == key.userid) && (node == key.node) && Arrays.equals(roles, key.roles));
+		}
+	}
+
+	private static final class Entry {
+		private final boolean value;
+		private final long expire;
+
+		private Entry(boolean value, long expire) {
+			this.value = value;
+			this.expire = expire;
+		}
+	}
+
+}
@@ -0,0 +1,539 @@
+package net.shadowpie.sadiinso.sfc.permissions;
+
+import net.shadowpie.sadiinso.sfc.db.DB;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * SQL access to the permission tables
+ * <p>
+ * Every statement is closed once executed, the SQL strings are constants (or built once per
+ * permission depth and number of roles) so that the prepared statements are reused by the driver
+ * statement cache. A permission check is a single query matching all the ancestors paths of the
+ * permission, the roles of the member are bound one by one to use the (sid, rid, pid) index.
+ * </p>
+ */
+final class PermissionDAO {
+
+	private static final String getPid = "SELECT id FROM perms_def WHERE name = ?";
+	private static final String getAllNames = "SELECT name FROM perms_def";
+	private static final String getUserGrantedNames = "SELECT name FROM perms_def WHERE id IN (SELECT pid FROM perms_users WHERE sid = ? AND uid = ?)";
+
+	// granted permissions listings (source kind, source id, name, isgroup), the roles permissions first
+	private static final String listUserGranted = "SELECT 1, u.uid, d.name, d.isgroup FROM perms_users u JOIN perms_def d ON d.id = u.pid WHERE u.sid = ? AND u.uid = ? ORDER BY 1, 2, 3";
+	private static final String listRoleGranted = "SELECT 0, r.rid, d.name, d.isgroup FROM perms_roles r JOIN perms_def d ON d.id = r.pid WHERE r.sid = ? AND r.rid = ? ORDER BY 3";
+	private static final String paged = " LIMIT ? OFFSET ?";
+
+	private static final String registerGroup = "INSERT INTO perms_def (name, isgroup) VALUES (?, true) ON DUPLICATE KEY UPDATE isgroup = true";
+	private static final String registerPerm = "INSERT IGNORE INTO perms_def (name, isgroup) VALUES (?, false)";
+
+	private static final String hasUserPid = "SELECT 1 FROM perms_users WHERE sid = ? AND uid = ? AND pid = ?";
+	private static final String hasRolePid = "SELECT 1 FROM perms_roles WHERE sid = ? AND rid = ? AND pid = ?";
+	private static final String insertUserPid = "INSERT INTO perms_users (sid, uid, pid) VALUES (?, ?, ?)";
+	private static final String insertRolePid = "INSERT INTO perms_roles (sid, rid, pid) VALUES (?, ?, ?)";
+	private static final String deleteUserPerms = "DELETE FROM perms_users WHERE sid = ? AND uid = ? AND pid IN (SELECT id FROM perms_def WHERE name LIKE ?)";
+	private static final String deleteRolePerms = "DELETE FROM perms_roles WHERE sid = ? AND rid = ? AND pid IN (SELECT id FROM perms_def WHERE name LIKE ?)";
+	private static final String deleteAllUserPerms = "DELETE FROM perms_users WHERE sid = ? AND uid = ?";
+	private static final String deleteAllRolePerms = "DELETE FROM perms_roles WHERE sid = ? AND rid = ?";
+
+	private static final String countIndex = "SELECT COUNT(*) FROM information_schema.statistics WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?";
+
+	// covering indexes for the per guild lookups, the primary keys start with the user / role id
+	private static final String[][] indexes = {
+			{ "perms_users", "perms_users_sid_uid_pid", "CREATE INDEX perms_users_sid_uid_pid ON perms_users (sid, uid, pid)" },
+			{ "perms_roles", "perms_roles_sid_rid_pid", "CREATE INDEX perms_roles_sid_rid_pid ON perms_roles (sid, rid, pid)" }
+	};
+
+	private static final String[] NO_CACHE = new String[0];
+
+	// checks queries, indexed by the number of ancestors paths (then by the number of roles)
+	private static final String[][] userChecks = new String[16][32];
+	private static final String[] userOnlyChecks = new String[16];
+	private static final String[] roleChecks = new String[16];
+
+	// listings queries, indexed by the number of roles
+	private static final String[] grantedNames = new String[32];
+	private static final String[] listGranted = new String[32];
+
+	// Suppresses default constructor, ensuring non-instantiability.
+	private PermissionDAO() {}
+
+	//######
+	//CHECKS
+	//######
+
+	/**
+	 * Check if the given user or one of its roles have the given permission or one of its parents
+	 *
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param roles The roles of the user (can be null)
+	 * @param path The permission master path
+	 */
+	static boolean hasPerm(long serverid, long userid, long[] roles, String path) throws SQLException {
+		String[] ancestors = ancestors(path);
+		int roleCount = ((roles == null) ? 0 : roles.length);
+
+		try (Connection conn = DB.getConn(); PreparedStatement stat = conn.prepareStatement(userCheck(ancestors.length, roleCount))) {
+			int index = setNames(stat, 1, ancestors);
+			stat.setLong(index, serverid);
+			stat.setLong(index + 1, userid);
+
+			if (roleCount > 0) {
+				stat.setLong(index + 2, serverid);
+				setIds(stat, index + 3, roles);
+			}
+
+			try (ResultSet res = stat.executeQuery()) {
+				return res.next();
+			}
+		}
+	}
+
+	/**
+	 * Check if the given role have the given permission or one of its parents
+	 *
+	 * @param serverid The server in which the role is located
+	 * @param roleid The role
+	 * @param path The permission master path
+	 */
+	static boolean hasRolePerm(long serverid, long roleid, String path) throws SQLException {
+		try (Connection conn = DB.getConn()) {
+			return hasRolePerm(conn, serverid, roleid, ancestors(path));
+		}
+	}
+
+	/**
+	 * Return the names of all the permissions granted to the given user and its roles
+	 *
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param roles The roles of the user (can be null)
+	 */
+	static List<String> getGrantedNames(long serverid, long userid, long[] roles) throws SQLException {
+		List<String> names = new ArrayList<>();
+
+		int roleCount = ((roles == null) ? 0 : roles.length);
+		String sql = ((roleCount == 0) ? getUserGrantedNames : checkQuery(grantedNames, roleCount,
+				() -> getUserGrantedNames + " OR id IN (SELECT pid FROM perms_roles WHERE sid = ? AND rid IN (" + placeholders(roleCount) + "))"));
+
+		try (Connection conn = DB.getConn(); PreparedStatement stat = conn.prepareStatement(sql)) {
+			stat.setLong(1, serverid);
+			stat.setLong(2, userid);
+
+			if (roleCount > 0) {
+				stat.setLong(3, serverid);
+				setIds(stat, 4, roles);
+			}
+
+			try (ResultSet res = stat.executeQuery()) {
+				while (res.next()) {
+					names.add(res.getString(1));
+				}
+			}
+		}
+
+		return names;
+	}
+
+	/**
+	 * Pass the permissions granted to the given user and its roles to the given consumer, the
+	 * rows are read one by one and the query stops as soon as the consumer returns false
+	 *
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param roles The roles of the user (can be null)
+	 * @param offset The number of permissions to skip
+	 * @param limit The maximum number of permissions to read (0 or less for no limit)
+	 * @param consumer The permissions consumer
+	 */
+	static void listGranted(long serverid, long userid, long[] roles, int offset, int limit, Permissions.PermConsumer consumer) throws SQLException {
+		int roleCount = ((roles == null) ? 0 : roles.length);
+		String sql = ((roleCount == 0) ? listUserGranted : checkQuery(listGranted, roleCount,
+				() -> "SELECT 0, r.rid, d.name, d.isgroup FROM perms_roles r JOIN perms_def d ON d.id = r.pid WHERE r.sid = ? AND r.rid IN (" + placeholders(roleCount) + ") UNION ALL " + listUserGranted));
+
+		try (Connection conn = DB.getConn(); PreparedStatement stat = conn.prepareStatement((limit > 0) ? sql + paged : sql)) {
+			int index = 1;
+			if (roleCount > 0) {
+				stat.setLong(1, serverid);
+				index = setIds(stat, 2, roles);
+			}
+
+			stat.setLong(index, serverid);
+			stat.setLong(index + 1, userid);
+			list(stat, index + 2, offset, limit, consumer);
+		}
+	}
+
+	/**
+	 * Pass the permissions granted to the given role to the given consumer (see {@link #listGranted(long, long, long[], int, int, Permissions.PermConsumer)})
+	 */
+	static void listRoleGranted(long serverid, long roleid, int offset, int limit, Permissions.PermConsumer consumer) throws SQLException {
+		try (Connection conn = DB.getConn(); PreparedStatement stat = conn.prepareStatement((limit > 0) ? listRoleGranted + paged : listRoleGranted)) {
+			stat.setLong(1, serverid);
+			stat.setLong(2, roleid);
+			list(stat, 3, offset, limit, consumer);
+		}
+	}
+
+	/**
+	 * Return the names of all the registered permissions
+	 */
+	static List<String> getAllNames() throws SQLException {
+		List<String> names = new ArrayList<>();
+
+		try (Connection conn = DB.getConn(); PreparedStatement stat = conn.prepareStatement(getAllNames); ResultSet res = stat.executeQuery()) {
+			while (res.next()) {
+				names.add(res.getString(1));
+			}
+		}
+
+		return names;
+	}
+
+	//#######
+	//UPDATES
+	//#######
+
+	/**
+	 * Register the given permission and its parents groups
+	 *
+	 * @param path The permission master path
+	 */
+	static void register(String path) throws SQLException {
+		try (Connection conn = DB.getConn()) {
+			int dot = path.indexOf('.');
+			if (dot != -1) {
+				try (PreparedStatement stat = conn.prepareStatement(registerGroup)) {
+					while (dot != -1) {
+						stat.setString(1, path.substring(0, dot));
+						stat.addBatch();
+						dot = path.indexOf('.', dot + 1);
+					}
+
+					stat.executeBatch();
+				}
+			}
+
+			try (PreparedStatement stat = conn.prepareStatement(registerPerm)) {
+				stat.setString(1, path);
+				stat.executeUpdate();
+			}
+		}
+	}
+
+	/**
+	 * Grant the given permission to the given user
+	 *
+	 * @return The {@link Permissions#grant(long, long, String)} result code
+	 */
+	static int grant(long serverid, long userid, String path) throws SQLException {
+		try (Connection conn = DB.getConn()) {
+			int pid = getPid(conn, path);
+			if (pid == -1) {
+				return 4;
+			}
+
+			String[] ancestors = ancestors(path);
+			try (PreparedStatement stat = conn.prepareStatement(userOnlyCheck(ancestors.length))) {
+				int index = setNames(stat, 1, ancestors);
+				stat.setLong(index, serverid);
+				stat.setLong(index + 1, userid);
+
+				try (ResultSet res = stat.executeQuery()) {
+					if (res.next()) {
+						return 1;
+					}
+				}
+			}
+
+			return insert(conn, insertUserPid, serverid, userid, pid);
+		}
+	}
+
+	/**
+	 * Grant the given permission to the given role
+	 *
+	 * @return The {@link Permissions#grantToRole(long, long, String)} result code
+	 */
+	static int grantToRole(long serverid, long roleid, String path) throws SQLException {
+		try (Connection conn = DB.getConn()) {
+			int pid = getPid(conn, path);
+			if (pid == -1) {
+				return 4;
+			}
+
+			if (hasRolePerm(conn, serverid, roleid, ancestors(path))) {
+				return 1;
+			}
+
+			return insert(conn, insertRolePid, serverid, roleid, pid);
+		}
+	}
+
+	/**
+	 * Revoke the given permission and its sub permissions from the given user
+	 *
+	 * @return The {@link Permissions#revoke(long, long, String)} result code
+	 */
+	static int revoke(long serverid, long userid, String path) throws SQLException {
+		return delete(hasUserPid, deleteUserPerms, serverid, userid, path);
+	}
+
+	/**
+	 * Revoke the given permission and its sub permissions from the given role
+	 *
+	 * @return The {@link Permissions#revokeFromRole(long, long, String)} result code
+	 */
+	static int revokeFromRole(long serverid, long roleid, String path) throws SQLException {
+		return delete(hasRolePid, deleteRolePerms, serverid, roleid, path);
+	}
+
+	/**
+	 * Revoke all the permissions of the given user
+	 */
+	static void revokeAll(long serverid, long userid) throws SQLException {
+		deleteAll(deleteAllUserPerms, serverid, userid);
+	}
+
+	/**
+	 * Revoke all the permissions of the given role
+	 */
+	static void revokeAllFromRole(long serverid, long roleid) throws SQLException {
+		deleteAll(deleteAllRolePerms, serverid, roleid);
+	}
+
+	//#########
+	//MIGRATION
+	//#########
+
+	/**
+	 * Create the indexes missing from the tables created by previous versions
+	 *
+	 * @return The number of created indexes
+	 */
+	static int migrate() throws SQLException {
+		int created = 0;
+
+		try (Connection conn = DB.getConn(); PreparedStatement stat = conn.prepareStatement(countIndex)) {
+			for (String[] index : indexes) {
+				stat.setString(1, index[0]);
+				stat.setString(2, index[1]);
+
+				try (ResultSet res = stat.executeQuery()) {
+					if (res.next() && (res.getInt(1) > 0)) {
+						continue;
+					}
+				}
+
+				try (PreparedStatement create = conn.prepareStatement(index[2])) {
+					create.executeUpdate();
+					++created;
+				}
+			}
+		}
+
+		return created;
+	}
+
+	//#######
+	//HELPERS
+	//#######
+
+	/**
+	 * Return the root permission followed by all the segments of the given path ("a.b" gives "*", "a", "a.b")
+	 */
+	private static String[] ancestors(String path) {
+		if (path.equals("*")) {
+			return new String[] { "*" };
+		}
+
+		int count = 2;
+		for (int t = 0; t < path.length(); t++) {
+			if (path.charAt(t) == '.') {
+				++count;
+			}
+		}
+
+		String[] ancestors = new String[count];
+		ancestors[0] = "*";
+
+		int index = 1;
+		int dot = path.indexOf('.');
+		while (dot != -1) {
+			ancestors[index++] = path.substring(0, dot);
+			dot = path.indexOf('.', dot + 1);
+		}
+
+		ancestors[index] = path;
+		return ancestors;
+	}
+
+	private static void list(PreparedStatement stat, int index, int offset, int limit, Permissions.PermConsumer consumer) throws SQLException {
+		if (limit > 0) {
+			stat.setInt(index, limit);
+			stat.setInt(index + 1, offset);
+		}
+
+		stat.setFetchSize((limit > 0) ? limit : 64);
+
+		try (ResultSet res = stat.executeQuery()) {
+			// the offset is only sent with a limit
+			int skip = ((limit > 0) ? 0 : offset);
+
+			while (res.next()) {
+				if (skip > 0) {
+					--skip;
+					continue;
+				}
+
+				String name = (res.getBoolean(4) ? res.getString(3) + ".*" : res.getString(3));
+				if (!consumer.accept(res.getInt(1) == 0, res.getLong(2), name)) {
+					break;
+				}
+			}
+		}
+	}
+
+	private static int setNames(PreparedStatement stat, int index, String[] names) throws SQLException {
+		for (String name : names) {
+			stat.setString(index++, name);
+		}
+
+		return index;
+	}
+
+	private static int setIds(PreparedStatement stat, int index, long[] ids) throws SQLException {
+		for (long id : ids) {
+			stat.setLong(index++, id);
+		}
+
+		return index;
+	}
+
+	private static String placeholders(int count) {
+		StringBuilder builder = new StringBuilder(count * 3);
+		for (int t = 0; t < count; t++) {
+			builder.append((t == 0) ? "?" : ", ?");
+		}
+
+		return builder.toString();
+	}
+
+	private static String userCheck(int count, int roles) {
+		String[] cache = ((count < userChecks.length) ? userChecks[count] : NO_CACHE);
+		return checkQuery(cache, roles, () -> {
+			String head = "SELECT 1 FROM perms_def d WHERE d.name IN (" + placeholders(count) + ") AND ";
+			String users = "EXISTS (SELECT 1 FROM perms_users u WHERE u.sid = ? AND u.uid = ? AND u.pid = d.id)";
+			if (roles == 0) {
+				return head + users + " LIMIT 1";
+			}
+
+			// the roles are matched through the (sid, rid, pid) index
+			return head + "(" + users + " OR EXISTS (SELECT 1 FROM perms_roles r WHERE r.sid = ? AND r.rid IN (" + placeholders(roles) + ") AND r.pid = d.id)) LIMIT 1";
+		});
+	}
+
+	private static String userOnlyCheck(int count) {
+		return checkQuery(userOnlyChecks, count, () -> "SELECT 1 FROM perms_users WHERE pid IN (SELECT id FROM perms_def WHERE name IN (" + placeholders(count) + ")) AND sid = ? AND uid = ? LIMIT 1");
+	}
+
+	private static String roleCheck(int count) {
+		return checkQuery(roleChecks, count, () -> "SELECT 1 FROM perms_roles WHERE pid IN (SELECT id FROM perms_def WHERE name IN (" + placeholders(count) + ")) AND sid = ? AND rid = ? LIMIT 1");
+	}
+
+	/**
+	 * Return the query with the given number of placeholders from the given cache, building it if needed
+	 */
+	private static String checkQuery(String[] cache, int count, Supplier<String> builder) {
+		if (count >= cache.length) {
+			return builder.get();
+		}
+
+		synchronized (cache) {
+			if (cache[count] == null) {
+				cache[count] = builder.get();
+			}
+
+			return cache[count];
+		}
+	}
+
+	private static boolean hasRolePerm(Connection conn, long serverid, long roleid, String[] ancestors) throws SQLException {
+		try (PreparedStatement stat = conn.prepareStatement(roleCheck(ancestors.length))) {
+			int index = setNames(stat, 1, ancestors);
+			stat.setLong(index, serverid);
+			stat.setLong(index + 1, roleid);
+
+			try (ResultSet res = stat.executeQuery()) {
+				return res.next();
+			}
+		}
+	}
+
+	private static int getPid(Connection conn, String path) throws SQLException {
+		try (PreparedStatement stat = conn.prepareStatement(getPid)) {
+			stat.setString(1, path);
+
+			try (ResultSet res = stat.executeQuery()) {
+				return (res.next() ? res.getInt(1) : -1);
+			}
+		}
+	}
+
+	private static int insert(Connection conn, String sql, long serverid, long id, int pid) throws SQLException {
+		try (PreparedStatement stat = conn.prepareStatement(sql)) {
+			stat.setLong(1, serverid);
+			stat.setLong(2, id);
+			stat.setInt(3, pid);
+			stat.executeUpdate();
+		}
+
+		return 0;
+	}
+
+	private static int delete(String exists, String delete, long serverid, long id, String path) throws SQLException {
+		try (Connection conn = DB.getConn()) {
+			int pid = getPid(conn, path);
+			if (pid == -1) {
+				return 4;
+			}
+
+			try (PreparedStatement stat = conn.prepareStatement(exists)) {
+				stat.setLong(1, serverid);
+				stat.setLong(2, id);
+				stat.setInt(3, pid);
+
+				try (ResultSet res = stat.executeQuery()) {
+					if (!res.next()) {
+						return 1;
+					}
+				}
+			}
+
+			try (PreparedStatement stat = conn.prepareStatement(delete)) {
+				stat.setLong(1, serverid);
+				stat.setLong(2, id);
+				stat.setString(3, path + "%");
+				stat.executeUpdate();
+			}
+		}
+
+		return 0;
+	}
+
+	private static void deleteAll(String sql, long serverid, long id) throws SQLException {
+		try (Connection conn = DB.getConn(); PreparedStatement stat = conn.prepareStatement(sql)) {
+			stat.setLong(1, serverid);
+			stat.setLong(2, id);
+			stat.executeUpdate();
+		}
+	}
+
+}
@@ -0,0 +1,634 @@
+package net.shadowpie.sadiinso.sfc.permissions;
+
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import net.shadowpie.sadiinso.sfc.db.DB;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * In-memory mirror of the permission tables
+ * <p>
+ * The granted permissions are loaded per guild on first access and stored as
+ * {@link PermissionTree} nodes, they are then kept in sync by the {@link Permissions}
+ * grant/revoke methods. The checks never block : the guild tables are immutable once published
+ * and a grant/revoke replaces the table of its guild by an updated copy. The engine lock only
+ * guards the permission definitions, the guilds and the definitions are loaded from the database
+ * outside of it.
+ * </p>
+ */
+final class PermissionEngine {
+
+	private static final int NO_NODE = PermissionTree.NO_NODE;
+
+	private static final String getAllDefs = "SELECT id, name FROM perms_def";
+	private static final String getGuildUsers = "SELECT uid, pid FROM perms_users WHERE sid = ?";
+	private static final String getGuildRoles = "SELECT rid, pid FROM perms_roles WHERE sid = ?";
+
+	private final PermissionTree tree;
+
+	// permission id -> tree node, guarded by the engine lock
+	private final TIntIntHashMap nodes = new TIntIntHashMap(64, 0.5f, -1, NO_NODE);
+	private boolean defsLoaded = false;
+
+	// guild id -> granted permissions nodes, the tables are never modified once published
+	private final ConcurrentHashMap<Long, GuildTable> guilds = new ConcurrentHashMap<>();
+
+	// guild id -> load in progress, the concurrent accesses wait for the same load
+	private final ConcurrentHashMap<Long, GuildLoad> loads = new ConcurrentHashMap<>();
+
+	// reload the guilds restored from a snapshot, null if disabled
+	private volatile Executor refresher;
+	private volatile LongConsumer onRefresh;
+
+	/**
+	 * Granted permissions of a single guild
+	 */
+	private static final class GuildTable {
+		private final TLongObjectHashMap<TIntHashSet> users;
+		private final TLongObjectHashMap<TIntHashSet> roles;
+
+		// restored from a snapshot, may differ from the database
+		private final boolean stale;
+		private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+		private GuildTable(boolean stale) {
+			this(new TLongObjectHashMap<>(), new TLongObjectHashMap<>(), stale);
+		}
+
+		private GuildTable(TLongObjectHashMap<TIntHashSet> users, TLongObjectHashMap<TIntHashSet> roles, boolean stale) {
+			this.users = users;
+			this.roles = roles;
+			this.stale = stale;
+		}
+
+		/**
+		 * Return a copy of this table with the nodes of the given user or role edited, only the edited set
+		 * and the map containing it are copied
+		 */
+		private GuildTable edit(boolean role, long id, Consumer<TIntHashSet> op) {
+			TLongObjectHashMap<TIntHashSet> map = new TLongObjectHashMap<>(role ? roles : users);
+			TIntHashSet old = map.get(id);
+			TIntHashSet set = ((old == null) ? new TIntHashSet(4) : new TIntHashSet(old));
+			op.accept(set);
+
+			if (set.isEmpty()) {
+				map.remove(id);
+			} else {
+				map.put(id, set);
+			}
+
+			return (role ? new GuildTable(users, map, stale) : new GuildTable(map, roles, stale));
+		}
+
+		private static boolean contains(TLongObjectHashMap<TIntHashSet> map, long id, int node) {
+			TIntHashSet set = map.get(id);
+			return ((set != null) && set.contains(node));
+		}
+
+		/**
+		 * Add a node to a table being built, before it is published
+		 */
+		private static void add(TLongObjectHashMap<TIntHashSet> map, long id, int node) {
+			TIntHashSet set = map.get(id);
+			if (set == null) {
+				set = new TIntHashSet(4);
+				map.put(id, set);
+			}
+
+			set.add(node);
+		}
+	}
+
+	/**
+	 * Load of a guild in progress
+	 */
+	private static final class GuildLoad extends CompletableFuture<GuildTable> {
+		// grants/revokes mirrored during the load, the load is then retried
+		private final AtomicInteger writes = new AtomicInteger();
+	}
+
+	/**
+	 * Rows of the permission tables of a single guild
+	 */
+	private static final class GuildRows {
+		private final TLongArrayList users = new TLongArrayList();
+		private final TIntArrayList userPids = new TIntArrayList();
+		private final TLongArrayList roles = new TLongArrayList();
+		private final TIntArrayList rolePids = new TIntArrayList();
+	}
+
+	PermissionEngine(PermissionTree tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * Reload in the background the guilds restored from a snapshot when they are first accessed
+	 *
+	 * @param executor The executor running the reloads
+	 * @param onRefresh Called with the guild id once a guild is reloaded
+	 */
+	void enableRefresh(Executor executor, LongConsumer onRefresh) {
+		this.onRefresh = onRefresh;
+		this.refresher = executor;
+	}
+
+	/**
+	 * Check if the given user have the given permission
+	 *
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param roles The roles of the user (can be null)
+	 * @param chain The permission nodes chain (see {@link PermissionTree#resolve(String)})
+	 */
+	boolean hasPerm(long serverid, long userid, long[] roles, int[] chain) throws SQLException {
+		return check(getGuild(serverid), userid, roles, chain);
+	}
+
+	/**
+	 * Return whether or not the permissions of the given guild are loaded (ie the checks will not access the database)
+	 */
+	boolean isLoaded(long serverid) {
+		return guilds.containsKey(serverid);
+	}
+
+	/**
+	 * Check if the given user have each of the given permissions
+	 *
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param roles The roles of the user (can be null)
+	 * @param chains The permissions nodes chains (see {@link PermissionTree#resolve(String)})
+	 * @param which The indexes of the chains to check
+	 * @return The indexes of the granted permissions
+	 */
+	BitSet hasPerms(long serverid, long userid, long[] roles, int[][] chains, BitSet which) throws SQLException {
+		GuildTable table = getGuild(serverid);
+		BitSet granted = new BitSet(chains.length);
+
+		for (int t = which.nextSetBit(0); t >= 0; t = which.nextSetBit(t + 1)) {
+			if (check(table, userid, roles, chains[t])) {
+				granted.set(t);
+			}
+		}
+
+		return granted;
+	}
+
+	/**
+	 * Check if the given role have the given permission
+	 *
+	 * @param serverid The server in which the role is located
+	 * @param roleid The role
+	 * @param chain The permission nodes chain (see {@link PermissionTree#resolve(String)})
+	 */
+	boolean hasRolePerm(long serverid, long roleid, int[] chain) throws SQLException {
+		GuildTable table = getGuild(serverid);
+		if (GuildTable.contains(table.roles, roleid, PermissionTree.ROOT)) {
+			return true;
+		}
+
+		for (int node : chain) {
+			if (GuildTable.contains(table.roles, roleid, node)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	//############
+	//SYNCHRONIZER
+	//############
+
+	/**
+	 * Force the permission definitions to be reloaded on the next guild load
+	 */
+	synchronized void invalidateDefinitions() {
+		defsLoaded = false;
+	}
+
+	/**
+	 * Mirror a permission granted to a user
+	 */
+	void grant(long serverid, long userid, String path) {
+		int node = tree.intern(path);
+		update(serverid, false, userid, set -> set.add(node));
+	}
+
+	/**
+	 * Mirror a permission granted to a role
+	 */
+	void grantToRole(long serverid, long roleid, String path) {
+		int node = tree.intern(path);
+		update(serverid, true, roleid, set -> set.add(node));
+	}
+
+	/**
+	 * Mirror a permission (and its sub permissions) revoked from a user
+	 */
+	void revoke(long serverid, long userid, String path) {
+		update(serverid, false, userid, set -> removeMatching(set, path));
+	}
+
+	/**
+	 * Mirror a permission (and its sub permissions) revoked from a role
+	 */
+	void revokeFromRole(long serverid, long roleid, String path) {
+		update(serverid, true, roleid, set -> removeMatching(set, path));
+	}
+
+	/**
+	 * Mirror the removal of all the permissions of a user
+	 */
+	void revokeAll(long serverid, long userid) {
+		update(serverid, false, userid, TIntHashSet::clear);
+	}
+
+	/**
+	 * Mirror the removal of all the permissions of a role
+	 */
+	void revokeAllFromRole(long serverid, long roleid) {
+		update(serverid, true, roleid, TIntHashSet::clear);
+	}
+
+	//########
+	//SNAPSHOT
+	//########
+
+	/**
+	 * Write the permission tables of all the loaded guilds
+	 * <p>
+	 * Format : the number of tree nodes and their paths (UTF-8, length prefixed) then the number of
+	 * guilds and for each guild its id followed by its users then its roles tables (number of
+	 * entries then for each entry the user / role id, the number of nodes and the nodes).
+	 * </p>
+	 */
+	void writeSnapshot(DataOutputStream out) throws IOException {
+		// the tables are listed before the nodes so that they only reference written nodes
+		List<Map.Entry<Long, GuildTable>> tables = new ArrayList<>(guilds.entrySet());
+
+		int size = tree.size();
+		out.writeInt(size);
+		for (int t = 0; t < size; t++) {
+			byte[] path = tree.path(t).getBytes(StandardCharsets.UTF_8);
+			out.writeShort(path.length);
+			out.write(path);
+		}
+
+		out.writeInt(tables.size());
+		for (Map.Entry<Long, GuildTable> entry : tables) {
+			out.writeLong(entry.getKey());
+			writeIds(out, entry.getValue().users);
+			writeIds(out, entry.getValue().roles);
+		}
+	}
+
+	/**
+	 * Restore the permission tables written by {@link #writeSnapshot(DataOutputStream)}, the restored
+	 * guilds are reloaded from the database on their first access (if enabled)
+	 *
+	 * @return The number of restored guilds
+	 * @throws BufferUnderflowException If the snapshot is truncated
+	 * @throws IllegalArgumentException If the snapshot is malformed
+	 */
+	int readSnapshot(ByteBuffer in) {
+		int size = in.getInt();
+		int[] map = new int[size];
+		for (int t = 0; t < size; t++) {
+			byte[] path = new byte[in.getShort() & 0xFFFF];
+			in.get(path);
+
+			String str = new String(path, StandardCharsets.UTF_8);
+			if (!PermissionTree.isPermPath(str)) {
+				throw new IllegalArgumentException("Malformed permission path \"" + str + "\"");
+			}
+
+			map[t] = tree.intern(str);
+		}
+
+		// read everything before restoring anything
+		int count = in.getInt();
+		TLongObjectHashMap<GuildTable> restored = new TLongObjectHashMap<>(count);
+		for (int t = 0; t < count; t++) {
+			long serverid = in.getLong();
+			GuildTable table = new GuildTable(true);
+			readIds(in, table.users, map);
+			readIds(in, table.roles, map);
+			restored.put(serverid, table);
+		}
+
+		TLongObjectIterator<GuildTable> itr = restored.iterator();
+		while (itr.hasNext()) {
+			itr.advance();
+			guilds.putIfAbsent(itr.key(), itr.value());
+		}
+
+		return count;
+	}
+
+	private static void writeIds(DataOutputStream out, TLongObjectHashMap<TIntHashSet> map) throws IOException {
+		out.writeInt(map.size());
+
+		TLongObjectIterator<TIntHashSet> itr = map.iterator();
+		while (itr.hasNext()) {
+			itr.advance();
+			out.writeLong(itr.key());
+			out.writeInt(itr.value().size());
+
+			TIntIterator nodes = itr.value().iterator();
+			while (nodes.hasNext()) {
+				out.writeInt(nodes.next());
+			}
+		}
+	}
+
+	private static void readIds(ByteBuffer in, TLongObjectHashMap<TIntHashSet> map, int[] nodes) {
+		int count = in.getInt();
+		for (int t = 0; t < count; t++) {
+			long id = in.getLong();
+			int size = in.getInt();
+
+			for (int i = 0; i < size; i++) {
+				int node = in.getInt();
+				if ((node < 0) || (node >= nodes.length)) {
+					throw new IllegalArgumentException("Invalid permission node " + node);
+				}
+
+				GuildTable.add(map, id, nodes[node]);
+			}
+		}
+	}
+
+	//#######
+	//HELPERS
+	//#######
+
+	private static boolean check(GuildTable table, long userid, long[] roles, int[] chain) {
+		if (GuildTable.contains(table.users, userid, PermissionTree.ROOT)) {
+			return true;
+		}
+
+		if (roles != null) {
+			for (long role : roles) {
+				if (GuildTable.contains(table.roles, role, PermissionTree.ROOT)) {
+					return true;
+				}
+			}
+		}
+
+		// test each node of the chain, from the top level group to the permission itself
+		for (int node : chain) {
+			if (roles != null) {
+				for (long role : roles) {
+					if (GuildTable.contains(table.roles, role, node)) {
+						return true;
+					}
+				}
+			}
+
+			if (GuildTable.contains(table.users, userid, node)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Remove all the permissions whose path start with the given path (same behavior as the
+	 * revokePermFromUser / revokePermFromRole procedures)
+	 */
+	private void removeMatching(TIntHashSet set, String path) {
+		TIntIterator itr = set.iterator();
+		while (itr.hasNext()) {
+			if (tree.path(itr.next()).startsWith(path)) {
+				itr.remove();
+			}
+		}
+	}
+
+	/**
+	 * Replace the table of the given guild by an updated copy if the guild is loaded
+	 *
+	 * @param role Whether the id is a role id or a user id
+	 * @param op The edit of the nodes of the user or role
+	 */
+	private void update(long serverid, boolean role, long id, Consumer<TIntHashSet> op) {
+		// counted before the table is looked up, a load reading the tables before the write is retried
+		GuildLoad load = loads.get(serverid);
+		if (load != null) {
+			load.writes.incrementAndGet();
+		}
+
+		guilds.computeIfPresent(serverid, (sid, table) -> table.edit(role, id, op));
+	}
+
+	/**
+	 * Return the permission table of the given guild, loading it if needed
+	 * <p>
+	 * The loaded tables are read without locking, the concurrent accesses to a guild being loaded
+	 * wait for the same load.
+	 * </p>
+	 */
+	private GuildTable getGuild(long serverid) throws SQLException {
+		GuildTable table = guilds.get(serverid);
+		if (table != null) {
+			Executor executor = refresher;
+			if (table.stale && (executor != null) && table.refreshing.compareAndSet(false, true)) {
+				try {
+					executor.execute(() -> refresh(serverid, table));
+				} catch (RejectedExecutionException e) {
+					table.refreshing.set(false);
+				}
+			}
+
+			return table;
+		}
+
+		GuildLoad created = new GuildLoad();
+		GuildLoad load = loads.putIfAbsent(serverid, created);
+		if (load == null) {
+			load = created;
+			try {
+				created.complete(load(serverid, created));
+			} catch (SQLException | RuntimeException e) {
+				created.completeExceptionally(e);
+			} finally {
+				loads.remove(serverid, created);
+			}
+		}
+
+		try {
+			return load.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Load the given guild from the database and publish its table, the load must be registered in {@link #loads}
+	 */
+	private GuildTable load(long serverid, GuildLoad load) throws SQLException {
+		while (true) {
+			int writes = load.writes.get();
+			GuildTable table = toTable(fetchGuild(serverid));
+			guilds.put(serverid, table);
+
+			// the grants/revokes counted after this point are applied to the published table
+			if (load.writes.get() == writes) {
+				return table;
+			}
+		}
+	}
+
+	/**
+	 * Replace the given table restored from a snapshot by the database content
+	 */
+	private void refresh(long serverid, GuildTable stale) {
+		try {
+			GuildTable table = toTable(fetchGuild(serverid));
+
+			// a grant/revoke during the reload replaced the stale table, retry on the next access
+			if (guilds.replace(serverid, stale, table)) {
+				onRefresh.accept(serverid);
+			}
+		} catch (SQLException e) {
+			// keep the snapshot data until the next try
+		} finally {
+			stale.refreshing.set(false);
+		}
+	}
+
+	/**
+	 * Build the table of the given rows, the definitions are reloaded at most once if some
+	 * permission ids are unknown (registered after the definitions were loaded)
+	 */
+	private GuildTable toTable(GuildRows rows) throws SQLException {
+		int[] userNodes = new int[rows.userPids.size()];
+		int[] roleNodes = new int[rows.rolePids.size()];
+
+		boolean resolved;
+		synchronized (this) {
+			resolved = resolveNodes(rows.userPids, userNodes) & resolveNodes(rows.rolePids, roleNodes);
+		}
+
+		if (!resolved) {
+			TIntArrayList ids = new TIntArrayList();
+			List<String> names = new ArrayList<>();
+			fetchDefinitions(ids, names);
+
+			synchronized (this) {
+				nodes.clear();
+				for (int t = 0; t < ids.size(); t++) {
+					nodes.put(ids.get(t), tree.intern(names.get(t)));
+				}
+
+				defsLoaded = true;
+				resolveNodes(rows.userPids, userNodes);
+				resolveNodes(rows.rolePids, roleNodes);
+			}
+		}
+
+		GuildTable table = new GuildTable(false);
+		for (int t = 0; t < userNodes.length; t++) {
+			if (userNodes[t] != NO_NODE) {
+				GuildTable.add(table.users, rows.users.get(t), userNodes[t]);
+			}
+		}
+
+		for (int t = 0; t < roleNodes.length; t++) {
+			if (roleNodes[t] != NO_NODE) {
+				GuildTable.add(table.roles, rows.roles.get(t), roleNodes[t]);
+			}
+		}
+
+		return table;
+	}
+
+	/**
+	 * Return the tree nodes of the given permission ids, must hold the lock
+	 *
+	 * @return Whether all the ids are known
+	 */
+	private boolean resolveNodes(TIntArrayList pids, int[] res) {
+		boolean resolved = defsLoaded;
+		for (int t = 0; t < res.length; t++) {
+			res[t] = nodes.get(pids.get(t));
+			resolved &= (res[t] != NO_NODE);
+		}
+
+		return resolved;
+	}
+
+	private static void fetchDefinitions(TIntArrayList ids, List<String> names) throws SQLException {
+		try (Connection conn = DB.getConn(); PreparedStatement stat = conn.prepareStatement(getAllDefs); ResultSet res = stat.executeQuery()) {
+			while (res.next()) {
+				ids.add(res.getInt(1));
+				names.add(res.getString(2));
+			}
+		}
+	}
+
+	private static GuildRows fetchGuild(long serverid) throws SQLException {
+		GuildRows rows = new GuildRows();
+		long start = System.nanoTime();
+
+		try (Connection conn = DB.getConn()) {
+			try (PreparedStatement stat = conn.prepareStatement(getGuildUsers)) {
+				stat.setLong(1, serverid);
+				try (ResultSet res = stat.executeQuery()) {
+					while (res.next()) {
+						rows.users.add(res.getLong(1));
+						rows.userPids.add(res.getInt(2));
+					}
+				}
+			}
+
+			try (PreparedStatement stat = conn.prepareStatement(getGuildRoles)) {
+				stat.setLong(1, serverid);
+				try (ResultSet res = stat.executeQuery()) {
+					while (res.next()) {
+						rows.roles.add(res.getLong(1));
+						rows.rolePids.add(res.getInt(2));
+					}
+				}
+			}
+		} finally {
+			PermissionMetrics.record(PermissionMetrics.Op.LOAD, start, serverid, 0);
+		}
+
+		return rows;
+	}
+
+}
@@ -0,0 +1,157 @@
+package net.shadowpie.sadiinso.sfc.permissions;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import net.dv8tion.jda.internal.utils.JDALogger;
+import net.shadowpie.sadiinso.sfc.db.DB;
+import net.shadowpie.sadiinso.sfc.utils.LatencyHistogram;
+import net.shadowpie.sadiinso.sfc.utils.SFUtils;
+import org.slf4j.Logger;
+
+/**
+ * Latency metrics of the permissions module
+ * <p>
+ * Each {@link Permissions} operation is timed in its own histogram, the operations slower than
+ * {@link DB#getSlowQueryThreshold()} are logged. The database time is shown by the LOAD (guild
+ * tables loaded by the in-memory engine) and pool wait histograms.
+ * </p>
+ */
+public final class PermissionMetrics {
+
+	private static final Logger logger = JDALogger.getLog("PermissionMetrics");
+
+	public enum Op {
+		HAS_PERM("hasPerm"),
+		HAS_PERMS("hasPerms"),
+		HAS_ROLE_PERM("hasRolePerm"),
+		GRANT("grant"),
+		REVOKE("revoke"),
+		REGISTER("register"),
+		LIST("list"),
+		LOAD("load");
+
+		private final String label;
+		private final LatencyHistogram histogram = new LatencyHistogram();
+
+		Op(String label) {
+			this.label = label;
+		}
+
+		public String label() {
+			return label;
+		}
+
+		public LatencyHistogram histogram() {
+			return histogram;
+		}
+	}
+
+	// Suppresses default constructor, ensuring non-instantiability.
+	private PermissionMetrics() {}
+
+	/**
+	 * Record the duration of the given operation started at the given {@link System#nanoTime()} value
+	 *
+	 * @param op The operation
+	 * @param start The start of the operation
+	 * @param serverid The server of the operation
+	 * @param id The user or role concerned by the operation, 0 for the whole server
+	 */
+	static void record(Op op, long start, long serverid, long id) {
+		long elapsed = op.histogram.since(start);
+		if (elapsed > DB.getSlowQueryThreshold()) {
+			String target = ((id == 0) ? ((serverid == 0) ? "" : (" for server " + serverid)) : (" for " + id + "@" + serverid));
+			logger.warn("Slow permission operation " + op.label + target + " (" + (elapsed / 1_000_000L) + "ms)");
+		}
+	}
+
+	/**
+	 * Clear all the recorded latencies
+	 */
+	public static void reset() {
+		for (Op op : Op.values()) {
+			op.histogram.reset();
+		}
+
+		DB.getPoolWait().reset();
+	}
+
+	/**
+	 * Return the ratio of the checks answered by the cache or -1 if the cache is disabled
+	 */
+	public static double cacheHitRatio() {
+		PermissionCache cache = Permissions.getCache();
+		if (cache == null) {
+			return -1;
+		}
+
+		long hits = cache.hits();
+		long total = hits + cache.misses();
+		return ((total == 0) ? 0 : ((double) hits / total));
+	}
+
+	/**
+	 * Return all the metrics as a JSON object
+	 */
+	public static ObjectNode toJson() {
+		ObjectNode root = SFUtils.mapper.createObjectNode();
+
+		ObjectNode ops = root.putObject("ops");
+		for (Op op : Op.values()) {
+			op.histogram.toJson(ops.putObject(op.label));
+		}
+
+		PermissionCache cache = Permissions.getCache();
+		ObjectNode cacheNode = root.putObject("cache");
+		cacheNode.put("enabled", cache != null);
+		if (cache != null) {
+			cacheNode.put("hits", cache.hits());
+			cacheNode.put("misses", cache.misses());
+			cacheNode.put("evictions", cache.evictions());
+			cacheNode.put("size", cache.size());
+			cacheNode.put("hit_ratio", cacheHitRatio());
+		}
+
+		ObjectNode pool = root.putObject("pool");
+		DB.getPoolWait().toJson(pool.putObject("wait"));
+		HikariPoolMXBean stats = DB.getPoolStats();
+		if (stats != null) {
+			pool.put("size", DB.getPoolSize());
+			pool.put("active", stats.getActiveConnections());
+			pool.put("idle", stats.getIdleConnections());
+			pool.put("waiting", stats.getThreadsAwaitingConnection());
+		}
+
+		root.put("slow_threshold_ms", DB.getSlowQueryThreshold() / 1_000_000L);
+		return root;
+	}
+
+	/**
+	 * Return all the metrics as a human readable text
+	 */
+	public static String format() {
+		StringBuilder sb = new StringBuilder(512);
+		for (Op op : Op.values()) {
+			sb.append(String.format("%-12s", op.label)).append(op.histogram).append('\n');
+		}
+
+		sb.append(String.format("%-12s", "pool wait")).append(DB.getPoolWait()).append('\n');
+
+		HikariPoolMXBean stats = DB.getPoolStats();
+		if (stats != null) {
+			sb.append("pool: size=").append(DB.getPoolSize()).append(" active=").append(stats.getActiveConnections())
+				.append(" idle=").append(stats.getIdleConnections()).append(" waiting=").append(stats.getThreadsAwaitingConnection()).append('\n');
+		}
+
+		PermissionCache cache = Permissions.getCache();
+		if (cache == null) {
+			sb.append("cache: disabled");
+		} else {
+			sb.append(String.format("cache: hits=%d misses=%d evictions=%d size=%d hit ratio=%.1f%%", cache.hits(), cache.misses(),
+					cache.evictions(), cache.size(), cacheHitRatio() * 100));
+		}
+
+		return sb.toString();
+	}
+
+}
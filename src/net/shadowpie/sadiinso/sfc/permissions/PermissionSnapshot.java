@@ -0,0 +1,111 @@
+package net.shadowpie.sadiinso.sfc.permissions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the {@link PermissionEngine} tables, used to answer the permission checks
+ * right after a restart
+ * <p>
+ * File layout : magic (int), version (int), payload length (int), payload CRC32 (long) then the
+ * payload written by {@link PermissionEngine#writeSnapshot(DataOutputStream)}.
+ * </p>
+ */
+final class PermissionSnapshot {
+
+	private static final int MAGIC = 0x53464350;// "SFCP"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+
+	// Suppresses default constructor, ensuring non-instantiability.
+	private PermissionSnapshot() {}
+
+	/**
+	 * Write the tables of the given engine to the given file
+	 * <p>
+	 * The snapshot is first written to a temporary file which then replace the given file.
+	 * </p>
+	 */
+	static void write(PermissionEngine engine, File file) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(4096);
+		try (DataOutputStream out = new DataOutputStream(payload)) {
+			engine.writeSnapshot(out);
+		}
+
+		byte[] data = payload.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(data.length);
+		header.putLong(crc.getValue());
+		header.flip();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer body = ByteBuffer.wrap(data);
+			while (header.hasRemaining() || body.hasRemaining()) {
+				channel.write(new ByteBuffer[] { header, body });
+			}
+
+			channel.force(true);
+		}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Restore the tables of the given engine from the given file
+	 *
+	 * @return The number of restored guilds
+	 * @throws IOException If the file can't be read or is not a valid snapshot
+	 */
+	static int read(PermissionEngine engine, File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE) {
+				throw new IOException("Truncated snapshot header");
+			}
+
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.getInt() != MAGIC) {
+				throw new IOException("Not a permission snapshot");
+			}
+
+			int version = buf.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version " + version);
+			}
+
+			int length = buf.getInt();
+			long checksum = buf.getLong();
+			if ((length < 0) || (length != channel.size() - HEADER_SIZE)) {
+				throw new IOException("Truncated snapshot");
+			}
+
+			ByteBuffer payload = buf.slice();
+			CRC32 crc = new CRC32();
+			crc.update(payload.duplicate());
+			if (crc.getValue() != checksum) {
+				throw new IOException("Snapshot checksum mismatch");
+			}
+
+			try {
+				return engine.readSnapshot(payload);
+			} catch (RuntimeException e) {
+				throw new IOException("Malformed snapshot", e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+package net.shadowpie.sadiinso.sfc.permissions;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.util.Arrays;
+
+/**
+ * Registry of all the known permission paths
+ * <p>
+ * Each path segment is interned as a node of a tree and identified by an integer, a permission
+ * can then be represented by the chain of its ancestors nodes (from the top level group to the
+ * permission itself) so that checking it only require integer lookups.
+ * </p>
+ */
+public final class PermissionTree {
+
+	/**
+	 * Node of the root permission ("*")
+	 */
+	public static final int ROOT = 0;
+
+	/**
+	 * Returned when a path is not registered
+	 */
+	public static final int NO_NODE = -1;
+
+	// full path -> node
+	private final TObjectIntHashMap<String> index = new TObjectIntHashMap<>(64, 0.5f, NO_NODE);
+
+	private String[] paths = new String[64];
+	private int[][] chains = new int[64][];
+	private int size = 0;
+
+	PermissionTree() {
+		// the root node is not the parent of the top level groups, it is only checked separately
+		add("*", NO_NODE);
+	}
+
+	/**
+	 * Return whether or not the given string represent a permission path
+	 * <p>
+	 * A permission path is constitued exclusively of lowercase letters groups
+	 * separated by dots and can end with ".*"
+	 * </p>
+	 */
+	public static boolean isPermPath(String perm) {
+		int len = perm.length();
+		if ((len == 1) && (perm.charAt(0) == '*')) {
+			return true;
+		}
+
+		// ignore the group suffix
+		if ((len > 2) && (perm.charAt(len - 1) == '*') && (perm.charAt(len - 2) == '.')) {
+			len -= 2;
+		}
+
+		boolean segStart = true;
+		for (int t = 0; t < len; t++) {
+			char c = perm.charAt(t);
+
+			if ((c >= 'a') && (c <= 'z')) {
+				segStart = false;
+			} else if ((c == '.') && !segStart) {
+				segStart = true;
+			} else {
+				return false;
+			}
+		}
+
+		return !segStart;
+	}
+
+	/**
+	 * Register the given permission master path and all its parents groups
+	 *
+	 * @param path The permission master path
+	 * @return The node of the permission
+	 */
+	public synchronized int intern(String path) {
+		int node = index.get(path);
+		if (node != NO_NODE) {
+			return node;
+		}
+
+		int parent = NO_NODE;
+		int dot = path.lastIndexOf('.');
+		if (dot != -1) {
+			parent = intern(path.substring(0, dot));
+		}
+
+		return add(path, parent);
+	}
+
+	/**
+	 * Return the node of the given permission master path
+	 *
+	 * @param path The permission master path
+	 * @return The node or {@link #NO_NODE} if the path is not registered
+	 */
+	public synchronized int find(String path) {
+		return index.get(path);
+	}
+
+	/**
+	 * Return the ancestors chain of the deepest registered node of the given permission
+	 * master path (the permission itself if it is registered)
+	 * <p>
+	 * The segments of a path that are not registered can't be granted, a path is therefore
+	 * equivalent to the chain of its deepest registered parent.
+	 * </p>
+	 *
+	 * @param path The permission master path
+	 * @return The chain of nodes, from the top level group to the deepest node
+	 */
+	public synchronized int[] resolve(String path) {
+		if (path.equals("*")) {
+			return chains[ROOT];
+		}
+
+		int node = index.get(path);
+		if (node != NO_NODE) {
+			return chains[node];
+		}
+
+		int deepest = NO_NODE;
+		int dot = path.indexOf('.');
+		while (dot != -1) {
+			node = index.get(path.substring(0, dot));
+			if (node == NO_NODE) {
+				break;
+			}
+
+			deepest = node;
+			dot = path.indexOf('.', dot + 1);
+		}
+
+		return ((deepest == NO_NODE) ? ArrayUtils.EMPTY_INT_ARRAY : chains[deepest]);
+	}
+
+	/**
+	 * Return the ancestors chain of the given node
+	 */
+	public synchronized int[] chain(int node) {
+		return chains[node];
+	}
+
+	/**
+	 * Return the permission path of the given node
+	 */
+	public synchronized String path(int node) {
+		return paths[node];
+	}
+
+	/**
+	 * Return the number of registered nodes
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private int add(String path, int parent) {
+		if (size == paths.length) {
+			int capacity = size << 1;
+			paths = Arrays.copyOf(paths, capacity);
+			chains = Arrays.copyOf(chains, capacity);
+		}
+
+		int node = size++;
+		paths[node] = path;
+
+		if (parent == NO_NODE) {
+			chains[node] = new int[] { node };
+		} else {
+			int[] pchain = chains[parent];
+			int[] chain = Arrays.copyOf(pchain, pchain.length + 1);
+			chain[pchain.length] = node;
+			chains[node] = chain;
+		}
+
+		index.put(path, node);
+		return node;
+	}
+
+}
@@ -1,36 +1,65 @@
 package net.shadowpie.sadiinso.sfc.permissions;
 
+import gnu.trove.set.hash.TIntHashSet;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.internal.utils.JDALogger;
 import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.db.DB;
-import net.shadowpie.sadiinso.sfc.db.DBUtils;
+import net.shadowpie.sadiinso.sfc.permissions.PermissionMetrics.Op;
 import net.shadowpie.sadiinso.sfc.sfc.SFC;
 import net.shadowpie.sadiinso.sfc.utils.JdaUtils;
+import net.shadowpie.sadiinso.sfc.utils.SFUtils;
 import org.slf4j.Logger;
 
-import java.sql.*;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class Permissions {
 
 	private static final Logger logger = JDALogger.getLog("Permissions");
 
-	// only lowercase separated by dots or * (root perm)
-	private static Pattern permPattern;
+	// all the known permission paths
+	private static final PermissionTree tree = new PermissionTree();
 
 	public static final String permsListUsrKey = "#usr~";
 	
-	private static String remAllPerms;// remove all perms from user
-	private static String remAllRolePerms;// remove all perms from role
+	/**
+	 * Receive the permissions listed by {@link Permissions#forEach(long, long, int, int, PermConsumer)}
+	 */
+	@FunctionalInterface
+	public interface PermConsumer {
+		/**
+		 * @param fromRole Whether the permission is granted by a role or directly to the user
+		 * @param source The id of the role or of the user
+		 * @param perm The permission path (groups end with ".*")
+		 * @return false to stop the listing
+		 */
+		boolean accept(boolean fromRole, long source, String perm);
+	}
 	
-	private static String getAllPermsName;// get all permissions names from user
-	private static String getAllRolePermsName;// get all permissions names from role
+
+	// in-memory permission tables, null if disabled
+	private static PermissionEngine engine;
+	
+	// hasPerm answers cache, null if disabled
+	private static PermissionCache cache;
+	
+	// run the async operations, sized like the connection pool
+	private static ThreadPoolExecutor executor;
 
 	public static int init() {
 		if (!DB.isInit()) {
@@ -38,37 +67,104 @@ public class Permissions {
 			return SFC.ALL_OK;
 		}
 		
-		permPattern = Pattern.compile("^(([a-z]+(\\.[a-z]+)*(\\.\\*)?)|\\*)$");
-
-		remAllPerms = "DELETE FROM perms_users WHERE sid = ? AND uid = ?";
-		remAllRolePerms = "DELETE FROM perms_roles WHERE sid = ? AND rid = ?";
-		getAllPermsName = "SELECT name, isgroup FROM perms_def WHERE id IN (SELECT pid FROM perms_users WHERE sid = ? AND uid = ?) ORDER BY name";
-		getAllRolePermsName = "SELECT name, isgroup FROM perms_def WHERE id IN (SELECT pid FROM perms_roles WHERE sid = ? AND rid = ?) ORDER BY name";
-		
-		// create table & procedure in DB
-		/*String sql = Utils.getDataResourceAsString("db_init_permission.sql");
-		if(sql == null) {
-			logger.error("Unable to read the database configuration file for the permission module, skipping DB init. This may cause errors");
+		if (SFConfig.sfConfig.getBool("permissions_in_memory", true)) {
+			engine = new PermissionEngine(tree);
 		} else {
-			try (Connection conn = DB.getConn()) {	
-				Statement stat = conn.createStatement();
-				String[] updates = sql.split(";;");
-				
-				for(String update : updates)
-					if(!update.isBlank())
+			logger.info("In-memory permissions disabled, all the checks will be done by the database");
+		}
+		
+		int cacheSize = SFConfig.sfConfig.getInt("permissions_cache_size", 512);
+		if (cacheSize > 0) {
+			cache = new PermissionCache(cacheSize, SFConfig.sfConfig.getLong("permissions_cache_ttl_ms", 60_000L));
+		}
+		
+		if (DB.isEmbedded()) {
+			// create the tables of the embedded database, the external ones are created from db_init_permission.sql
+			String sql = SFUtils.getDataResourceAsString("db_init_permission_h2.sql");
+			if (sql == null) {
+				logger.error("Unable to read the database configuration file for the permission module");
+				return SFC.STOP_MODULE_ERROR;
+			}
+			
+			try (Connection conn = DB.getConn(); Statement stat = conn.createStatement()) {
+				for (String update : sql.split(";;")) {
+					if (!update.isBlank()) {
 						stat.executeUpdate(update);
-				
-			} catch (SQLException e) {
+					}
+				}
+			} catch (Exception e) {
 				logger.error("Error while initialing the database for the permission module", e);
 				return SFC.STOP_MODULE_ERROR;
 			}
-		}*/
+		} else {
+			// add the indexes missing from the tables created by previous versions
+			try {
+				int created = PermissionDAO.migrate();
+				if (created > 0) {
+					logger.info("Created " + created + " missing indexes on the permission tables");
+				}
+			} catch (Exception e) {
+				logger.error("Error while migrating the permission tables, the permission checks may be slower", e);
+			}
+		}
+		
+		int threads = Math.max(1, DB.getPoolSize());
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(SFConfig.sfConfig.getInt("permissions_async_queue", 1024)), r -> {
+			Thread th = new Thread(r, "Permissions-" + threadCount.incrementAndGet());
+			th.setDaemon(true);
+			return th;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		SFC.addShutdownHook(executor::shutdown);
 		
 		// ensure the root perm is registered
 		register("*");
 		
+		// the permissions registered during previous runs can still be granted
+		try {
+			for (String name : PermissionDAO.getAllNames()) {
+				tree.intern(name);
+			}
+		} catch (Exception e) {
+			logger.error("Error while loading the permissions definitions", e);
+		}
+		
+		if ((engine != null) && SFConfig.sfConfig.getBool("permissions_snapshot", false)) {
+			initSnapshot(new File(SFConfig.sfConfig.getString("permissions_snapshot_file", "permissions.snap")));
+		}
+		
 		return SFC.ALL_OK;
 	}
+	
+	/**
+	 * Restore the in-memory permissions from the given snapshot and write it on shutdown, the
+	 * restored guilds are reloaded from the database in the background on their first check
+	 */
+	private static void initSnapshot(File snapshot) {
+		if (snapshot.isFile()) {
+			try {
+				int count = PermissionSnapshot.read(engine, snapshot);
+				logger.info("Restored the permissions of " + count + " guilds from \"" + snapshot + "\"");
+			} catch (Exception e) {
+				logger.warn("Ignoring the permissions snapshot \"" + snapshot + "\"", e);
+			}
+		}
+		
+		engine.enableRefresh(executor, serverid -> {
+			if (cache != null) {
+				cache.invalidateGuild(serverid);
+			}
+		});
+		
+		SFC.addShutdownHook(() -> {
+			try {
+				PermissionSnapshot.write(engine, snapshot);
+			} catch (Exception e) {
+				logger.error("Error while writing the permissions snapshot", e);
+			}
+		});
+	}
 
 	/**
 	 * Return whether or not the given string represent a permission path
@@ -78,7 +174,58 @@ public class Permissions {
 	 * </p>
 	 */
 	public static boolean isPermPath(String perm) {
-		return permPattern.matcher(perm).find();
+		return PermissionTree.isPermPath(perm);
+	}
+
+	/**
+	 * Return the nodes chain of the given permission path, to be passed to {@link #hasPerm(long, long, int[])}
+	 * <p>
+	 * The permission should be registered first, the unknown segments of the path are ignored.
+	 * </p>
+	 * 
+	 * @param perm The permission path
+	 * @return The chain or null if the given string is not a permission path
+	 */
+	public static int[] resolve(String perm) {
+		return (isPermPath(perm) ? tree.resolve(extractMasterPath(perm)) : null);
+	}
+
+	/**
+	 * Return the registry of all the known permission paths
+	 */
+	public static PermissionTree getTree() {
+		return tree;
+	}
+
+	/**
+	 * Return the permission checks cache or null if the cache is disabled
+	 */
+	public static PermissionCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Return whether or not the given user is the bot owner or the owner of the given server
+	 */
+	private static boolean isOwner(long userid, Member member) {
+		return ((SFConfig.owner_lid() == userid) || ((member != null) && member.isOwner()));
+	}
+
+	/**
+	 * Return the deepest node of the given chain, used as cache key
+	 */
+	private static int lastNode(int[] chain) {
+		return ((chain.length == 0) ? PermissionTree.NO_NODE : chain[chain.length - 1]);
+	}
+
+	private static boolean containsAny(TIntHashSet nodes, int[] chain) {
+		for (int node : chain) {
+			if (nodes.contains(node)) {
+				return true;
+			}
+		}
+		
+		return false;
 	}
 
 	/**
@@ -128,18 +275,24 @@ public class Permissions {
 		}
 
 		int res;
-		try (Connection conn = DB.getConn()) {
-			CallableStatement call = conn.prepareCall("{CALL grantPermToUser(?, ?, ?, ?)}");
-			call.setLong(1, serverid);
-			call.setLong(2, userid);
-			call.setString(3, extractMasterPath(perm));
-			call.registerOutParameter(4, Types.INTEGER);
-			call.execute();
-			res = call.getInt(4);
+		long start = System.nanoTime();
+		try {
+			res = PermissionDAO.grant(serverid, userid, extractMasterPath(perm));
 		} catch (Exception e) {
 			logger.error("Error while setting permissions for user " + userid + "@" + serverid, e);
 			res = 2;
 		}
+		PermissionMetrics.record(Op.GRANT, start, serverid, userid);
+		
+		if (res == 0) {
+			if (engine != null) {
+				engine.grant(serverid, userid, extractMasterPath(perm));
+			}
+			
+			if (cache != null) {
+				cache.invalidateUser(serverid, userid);
+			}
+		}
 		
 		return res;
 	}
@@ -168,18 +321,24 @@ public class Permissions {
 		}
 
 		int res;
-		try (Connection conn = DB.getConn()) {
-			CallableStatement call = conn.prepareCall("{CALL grantPermToRole(?, ?, ?, ?)}");
-			call.setLong(1, serverid);
-			call.setLong(2, roleid);
-			call.setString(3, extractMasterPath(perm));
-			call.registerOutParameter(4, Types.INTEGER);
-			call.execute();
-			res = call.getInt(4);
+		long start = System.nanoTime();
+		try {
+			res = PermissionDAO.grantToRole(serverid, roleid, extractMasterPath(perm));
 		} catch (Exception e) {
 			logger.error("Error while setting permissions for role " + roleid + "@" + serverid, e);
 			res = 2;
 		}
+		PermissionMetrics.record(Op.GRANT, start, serverid, roleid);
+		
+		if (res == 0) {
+			if (engine != null) {
+				engine.grantToRole(serverid, roleid, extractMasterPath(perm));
+			}
+			
+			if (cache != null) {
+				cache.invalidateRole(serverid, roleid);
+			}
+		}
 		
 		return res;
 	}
@@ -220,18 +379,24 @@ public class Permissions {
 		}
 
 		int res;
-		try (Connection conn = DB.getConn()) {
-			CallableStatement call = conn.prepareCall("{CALL revokePermFromUser(?, ?, ?, ?)}");
-			call.setLong(1, serverid);
-			call.setLong(2, userid);
-			call.setString(3, extractMasterPath(perm));
-			call.registerOutParameter(4, Types.INTEGER);
-			call.execute();
-			res = call.getInt(4);
+		long start = System.nanoTime();
+		try {
+			res = PermissionDAO.revoke(serverid, userid, extractMasterPath(perm));
 		} catch (Exception e) {
 			logger.error("Error while revoking permissions from user " + userid + "@" + serverid, e);
 			res = 2;
 		}
+		PermissionMetrics.record(Op.REVOKE, start, serverid, userid);
+		
+		if (res == 0) {
+			if (engine != null) {
+				engine.revoke(serverid, userid, extractMasterPath(perm));
+			}
+			
+			if (cache != null) {
+				cache.invalidateUser(serverid, userid);
+			}
+		}
 		
 		return res;
 	}
@@ -260,18 +425,24 @@ public class Permissions {
 		}
 
 		int res;
-		try (Connection conn = DB.getConn()) {
-			CallableStatement call = conn.prepareCall("{CALL revokePermFromRole(?, ?, ?, ?)}");
-			call.setLong(1, serverid);
-			call.setLong(2, roleid);
-			call.setString(3, extractMasterPath(perm));
-			call.registerOutParameter(4, Types.INTEGER);
-			call.execute();
-			res = call.getInt(4);
+		long start = System.nanoTime();
+		try {
+			res = PermissionDAO.revokeFromRole(serverid, roleid, extractMasterPath(perm));
 		} catch (Exception e) {
 			logger.error("Error while revoking permissions from user " + roleid + "@" + serverid, e);
 			res = 2;
 		}
+		PermissionMetrics.record(Op.REVOKE, start, serverid, roleid);
+		
+		if (res == 0) {
+			if (engine != null) {
+				engine.revokeFromRole(serverid, roleid, extractMasterPath(perm));
+			}
+			
+			if (cache != null) {
+				cache.invalidateRole(serverid, roleid);
+			}
+		}
 		
 		return res;
 	}
@@ -297,13 +468,20 @@ public class Permissions {
 			return 3;
 		}
 		
-		try (Connection conn = DB.getConn()) {
-			CallableStatement call = conn.prepareCall("{CALL registerPerm(?)}");
-			call.setString(1, extractMasterPath(perm));
-			call.execute();
+		long start = System.nanoTime();
+		try {
+			PermissionDAO.register(extractMasterPath(perm));
 		} catch (Exception e) {
 			logger.error("Error while registering permission \"" + perm + "\"", e);
 			return 2;
+		} finally {
+			PermissionMetrics.record(Op.REGISTER, start, 0, 0);
+		}
+		
+		tree.intern(extractMasterPath(perm));
+		
+		if (engine != null) {
+			engine.invalidateDefinitions();
 		}
 		
 		return 0;
@@ -318,38 +496,306 @@ public class Permissions {
 	 * @return
 	 */
 	public static boolean hasPerm(long serverid, long userid, String perm) {
-		// bot owner have all the perms
-		if (SFConfig.owner_lid() == userid)
-			return true;
-
-		// guild owners have all the perms on their servers
+		if (!isPermPath(perm)) {
+			// bot and guild owners have all the perms, even malformed ones
+			return isOwner(userid, JdaUtils.getMember(serverid, userid));
+		}
+		
+		String path = extractMasterPath(perm);
+		return hasPerm(serverid, userid, tree.resolve(path), path);
+	}
+	
+	/**
+	 * Check if the given user have the given permission
+	 * 
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param chain The permission nodes chain (see {@link #resolve(String)}), null for a malformed permission
+	 * @return
+	 */
+	public static boolean hasPerm(long serverid, long userid, int[] chain) {
+		return hasPerm(serverid, userid, chain, null);
+	}
+	
+	private static boolean hasPerm(long serverid, long userid, int[] chain, String path) {
+		long start = System.nanoTime();
+		try {
+			return checkPerm(serverid, userid, chain, path);
+		} finally {
+			PermissionMetrics.record(Op.HAS_PERM, start, serverid, userid);
+		}
+	}
+	
+	private static boolean checkPerm(long serverid, long userid, int[] chain, String path) {
 		Member member = JdaUtils.getMember(serverid, userid);
-		if ((member != null) && member.isOwner()) {
+		if (isOwner(userid, member)) {
 			return true;
 		}
 		
-		if (!isPermPath(perm)) {
+		if (chain == null) {
+			// malformed permission, only granted to the owners
 			return false;
 		}
 		
+		long[] roles = JdaUtils.getAllRoleIdLong(member);
+		int node = lastNode(chain);
+		long gen = 0;
+		
+		if (cache != null) {
+			Boolean cached = cache.get(serverid, userid, roles, node);
+			if (cached != null) {
+				return cached;
+			}
+			
+			gen = cache.generation();
+		}
+		
 		boolean res;
-		try (Connection conn = DB.getConn()) {
-			CallableStatement call = conn.prepareCall("{CALL testFullUserPerm(?, ?, ?, ?, ?)}");
-			call.setLong(1, serverid);
-			call.setLong(2, userid);
-			call.setString(3, DBUtils.toSQLSet(JdaUtils.getAllRoleIdLong(member)));
-			call.setString(4, extractMasterPath(perm));
-			call.registerOutParameter(5, Types.BOOLEAN);
-			call.execute();
-			res = call.getBoolean(5);
-		} catch(Exception e) {
-			logger.error("Error while retrieving permissions for user " + userid + "@" + serverid, e);
-			res = false;
+		if (engine != null) {
+			try {
+				res = engine.hasPerm(serverid, userid, roles, chain);
+			} catch(Exception e) {
+				logger.error("Error while loading permissions for user " + userid + "@" + serverid, e);
+				return false;
+			}
+		} else {
+			if (path == null) {
+				path = ((node == PermissionTree.NO_NODE) ? "*" : tree.path(node));
+			}
+			
+			try {
+				res = PermissionDAO.hasPerm(serverid, userid, roles, path);
+			} catch(Exception e) {
+				logger.error("Error while retrieving permissions for user " + userid + "@" + serverid, e);
+				return false;
+			}
+		}
+		
+		if (cache != null) {
+			cache.put(serverid, userid, roles, node, res, gen);
 		}
 		
 		return res;
 	}
 
+	/**
+	 * Check if the given user have all the given permissions
+	 * 
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param perms The permissions paths
+	 */
+	public static boolean hasAll(long serverid, long userid, String... perms) {
+		int[][] chains = new int[perms.length][];
+		for (int t = 0; t < perms.length; t++) {
+			chains[t] = resolve(perms[t]);
+			
+			if (chains[t] == null) {
+				// bot and guild owners have all the perms, even malformed ones
+				return isOwner(userid, JdaUtils.getMember(serverid, userid));
+			}
+		}
+		
+		return hasAll(serverid, userid, chains);
+	}
+	
+	/**
+	 * Check if the given user have all the given permissions
+	 * 
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param chains The permissions nodes chains (see {@link #resolve(String)})
+	 */
+	public static boolean hasAll(long serverid, long userid, int[]... chains) {
+		return (hasPerms(serverid, userid, chains).cardinality() == chains.length);
+	}
+	
+	/**
+	 * Check if the given user have each of the given permissions
+	 * <p>
+	 * All the permissions are checked at once, the permissions that are not cached require
+	 * at most one database request.
+	 * </p>
+	 * 
+	 * @param serverid The server in which the user is located
+	 * @param userid The user
+	 * @param chains The permissions nodes chains (see {@link #resolve(String)}), null for a malformed permission
+	 * @return The indexes of the granted permissions
+	 */
+	public static BitSet hasPerms(long serverid, long userid, int[]... chains) {
+		long start = System.nanoTime();
+		try {
+			return checkPerms(serverid, userid, chains);
+		} finally {
+			PermissionMetrics.record(Op.HAS_PERMS, start, serverid, userid);
+		}
+	}
+	
+	private static BitSet checkPerms(long serverid, long userid, int[][] chains) {
+		BitSet granted = new BitSet(chains.length);
+		
+		Member member = JdaUtils.getMember(serverid, userid);
+		if (isOwner(userid, member)) {
+			granted.set(0, chains.length);
+			return granted;
+		}
+		
+		long[] roles = JdaUtils.getAllRoleIdLong(member);
+		BitSet missing = new BitSet(chains.length);
+		long gen = 0;
+		
+		// the malformed permissions are never checked, only granted to the owners
+		BitSet valid = new BitSet(chains.length);
+		for (int t = 0; t < chains.length; t++) {
+			if (chains[t] != null) {
+				valid.set(t);
+			}
+		}
+		
+		if (valid.isEmpty()) {
+			return granted;
+		}
+		
+		if (cache != null) {
+			gen = cache.generation();
+			
+			for (int t = valid.nextSetBit(0); t >= 0; t = valid.nextSetBit(t + 1)) {
+				Boolean cached = cache.get(serverid, userid, roles, lastNode(chains[t]));
+				if (cached == null) {
+					missing.set(t);
+				} else if (cached) {
+					granted.set(t);
+				}
+			}
+			
+			if (missing.isEmpty()) {
+				return granted;
+			}
+		} else {
+			missing.or(valid);
+		}
+		
+		BitSet res;
+		if (engine != null) {
+			try {
+				res = engine.hasPerms(serverid, userid, roles, chains, missing);
+			} catch(Exception e) {
+				logger.error("Error while loading permissions for user " + userid + "@" + serverid, e);
+				return granted;
+			}
+		} else {
+			TIntHashSet nodes = new TIntHashSet();
+			
+			try {
+				for (String name : PermissionDAO.getGrantedNames(serverid, userid, roles)) {
+					nodes.add(tree.intern(name));
+				}
+			} catch(Exception e) {
+				logger.error("Error while retrieving permissions for user " + userid + "@" + serverid, e);
+				return granted;
+			}
+			
+			res = new BitSet(chains.length);
+			for (int t = missing.nextSetBit(0); t >= 0; t = missing.nextSetBit(t + 1)) {
+				if (nodes.contains(PermissionTree.ROOT) || containsAny(nodes, chains[t])) {
+					res.set(t);
+				}
+			}
+		}
+		
+		if (cache != null) {
+			for (int t = missing.nextSetBit(0); t >= 0; t = missing.nextSetBit(t + 1)) {
+				cache.put(serverid, userid, roles, lastNode(chains[t]), res.get(t), gen);
+			}
+		}
+		
+		granted.or(res);
+		return granted;
+	}
+
+	/**
+	 * Asynchronous version of {@link #hasPerm(long, long, String)}
+	 */
+	public static CompletableFuture<Boolean> hasPermAsync(long serverid, long userid, String perm) {
+		if (isLoaded(serverid)) {
+			return CompletableFuture.completedFuture(hasPerm(serverid, userid, perm));
+		}
+		
+		return async(() -> hasPerm(serverid, userid, perm));
+	}
+	
+	/**
+	 * Asynchronous version of {@link #hasPerm(long, long, int[])}
+	 */
+	public static CompletableFuture<Boolean> hasPermAsync(long serverid, long userid, int[] chain) {
+		if (isLoaded(serverid)) {
+			return CompletableFuture.completedFuture(hasPerm(serverid, userid, chain));
+		}
+		
+		return async(() -> hasPerm(serverid, userid, chain));
+	}
+	
+	/**
+	 * Asynchronous version of {@link #hasPerms(long, long, int[]...)}
+	 */
+	public static CompletableFuture<BitSet> hasPermsAsync(long serverid, long userid, int[]... chains) {
+		if (isLoaded(serverid)) {
+			return CompletableFuture.completedFuture(hasPerms(serverid, userid, chains));
+		}
+		
+		return async(() -> hasPerms(serverid, userid, chains));
+	}
+	
+	/**
+	 * Asynchronous version of {@link #grant(long, long, String)}
+	 */
+	public static CompletableFuture<Integer> grantAsync(long serverid, long userid, String perm) {
+		return async(() -> grant(serverid, userid, perm));
+	}
+	
+	/**
+	 * Asynchronous version of {@link #grantToRole(long, long, String)}
+	 */
+	public static CompletableFuture<Integer> grantToRoleAsync(long serverid, long roleid, String perm) {
+		return async(() -> grantToRole(serverid, roleid, perm));
+	}
+	
+	/**
+	 * Asynchronous version of {@link #revoke(long, long, String)}
+	 */
+	public static CompletableFuture<Integer> revokeAsync(long serverid, long userid, String perm) {
+		return async(() -> revoke(serverid, userid, perm));
+	}
+	
+	/**
+	 * Asynchronous version of {@link #revokeFromRole(long, long, String)}
+	 */
+	public static CompletableFuture<Integer> revokeFromRoleAsync(long serverid, long roleid, String perm) {
+		return async(() -> revokeFromRole(serverid, roleid, perm));
+	}
+	
+	/**
+	 * Return whether or not the checks on the given server can be answered without accessing the database
+	 */
+	private static boolean isLoaded(long serverid) {
+		return ((executor == null) || ((engine != null) && engine.isLoaded(serverid)));
+	}
+	
+	/**
+	 * Run the given task on the permissions executor, the returned future fails if the executor queue is full
+	 */
+	private static <T> CompletableFuture<T> async(Supplier<T> task) {
+		if (executor == null) {
+			return CompletableFuture.completedFuture(task.get());
+		}
+		
+		try {
+			return CompletableFuture.supplyAsync(task, executor);
+		} catch (RejectedExecutionException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
 	/**
 	 * Check if the given role have the given permission
 	 * 
@@ -360,16 +806,28 @@ public class Permissions {
 	public static boolean hasRolePerm(long serverid, long roleid, String perm) {
 		if (!isPermPath(perm))
 			return false;
-
+		
+		long start = System.nanoTime();
+		try {
+			return checkRolePerm(serverid, roleid, perm);
+		} finally {
+			PermissionMetrics.record(Op.HAS_ROLE_PERM, start, serverid, roleid);
+		}
+	}
+	
+	private static boolean checkRolePerm(long serverid, long roleid, String perm) {
+		if (engine != null) {
+			try {
+				return engine.hasRolePerm(serverid, roleid, tree.resolve(extractMasterPath(perm)));
+			} catch(Exception e) {
+				logger.error("Error while loading permissions for role " + roleid + "@" + serverid, e);
+				return false;
+			}
+		}
+		
 		boolean res;
-		try (Connection conn = DB.getConn()) {
-			CallableStatement call = conn.prepareCall("{CALL testRolePerm(?, ?, ?, ?)}");
-			call.setLong(1, serverid);
-			call.setLong(2, roleid);
-			call.setString(3, perm);
-			call.registerOutParameter(4, Types.BOOLEAN);
-			call.execute();
-			res = call.getBoolean(4);
+		try {
+			res = PermissionDAO.hasRolePerm(serverid, roleid, extractMasterPath(perm));
 		} catch(Exception e) {
 			logger.error("Error while retrieving permissions for user " + roleid + "@" + serverid, e);
 			res = false;
@@ -398,14 +856,22 @@ public class Permissions {
 		if ((member != null) && member.isOwner())
 			return 0;
 		
-		try (Connection conn = DB.getConn()) {
-			PreparedStatement stat = conn.prepareStatement(remAllPerms);
-			stat.setLong(1, serverid);
-			stat.setLong(2, userid);
-			stat.executeUpdate();
+		long start = System.nanoTime();
+		try {
+			PermissionDAO.revokeAll(serverid, userid);
 		} catch (Exception e) {
 			logger.error("Error while removing permissions from user " + userid + "@" + serverid, e);
 			return 2;
+		} finally {
+			PermissionMetrics.record(Op.REVOKE, start, serverid, userid);
+		}
+		
+		if (engine != null) {
+			engine.revokeAll(serverid, userid);
+		}
+		
+		if (cache != null) {
+			cache.invalidateUser(serverid, userid);
 		}
 		
 		return 0;
@@ -422,14 +888,22 @@ public class Permissions {
 	 *         </ul>
 	 */
 	public static int revokeAllFromRole(long serverid, long roleid) {
-		try (Connection conn = DB.getConn()) {
-			PreparedStatement stat = conn.prepareStatement(remAllRolePerms);
-			stat.setLong(1, serverid);
-			stat.setLong(2, roleid);
-			stat.executeUpdate();
+		long start = System.nanoTime();
+		try {
+			PermissionDAO.revokeAllFromRole(serverid, roleid);
 		} catch (Exception e) {
 			logger.error("Error while removing permissions from role " + roleid + "@" + serverid, e);
 			return 2;
+		} finally {
+			PermissionMetrics.record(Op.REVOKE, start, serverid, roleid);
+		}
+		
+		if (engine != null) {
+			engine.revokeAllFromRole(serverid, roleid);
+		}
+		
+		if (cache != null) {
+			cache.invalidateRole(serverid, roleid);
 		}
 		
 		return 0;
@@ -441,51 +915,57 @@ public class Permissions {
 	 * @param userid The user
 	 * @return a HashMap object containing representing the perms granted to each roles (use {@link #permsListUsrKey} key to get user perms) or null if an error occured
 	 */
-	public static Map<String, List<String>> getAll(long serverid, long userid) {		
+	public static Map<String, List<String>> getAll(long serverid, long userid) {
 		Member member = JdaUtils.getMember(serverid, userid);
 		if(member == null)
 			return null;
 		
 		Map<String, List<String>> perms = new HashMap<>();
-		
-		try (Connection conn = DB.getConn()) {
-			PreparedStatement stat = conn.prepareStatement(getAllRolePermsName);
-			stat.setLong(1, serverid);
-			
-			for(Role role : member.getRoles()) {
-				stat.setLong(2, role.getIdLong());
-				stat.execute();
-				
-				ResultSet res = stat.getResultSet();
-				List<String> list = new LinkedList<>();
-				
-				while(res.next())
-					list.add(res.getBoolean(2) ? res.getString(1) + ".*" : res.getString(1));
-				
-				if(!list.isEmpty())
-					perms.put(role.getName(), list);
+		PermConsumer consumer = (fromRole, source, perm) -> {
+			String key = permsListUsrKey;
+			if (fromRole) {
+				Role role = member.getGuild().getRoleById(source);
+				key = ((role == null) ? Long.toString(source) : role.getName());
 			}
 			
-			stat = conn.prepareStatement(getAllPermsName);
-			stat.setLong(1, serverid);
-			stat.setLong(2, userid);
-			stat.execute();
-			
-			ResultSet res = stat.getResultSet();
-			List<String> list = new LinkedList<>();
-			
-			while(res.next())
-				list.add(res.getBoolean(2) ? res.getString(1) + ".*" : res.getString(1));
-			
-			if(!list.isEmpty())
-				perms.put(permsListUsrKey, list);
-			
+			perms.computeIfAbsent(key, k -> new ArrayList<>()).add(perm);
+			return true;
+		};
+		
+		return (forEach(serverid, member, 0, 0, consumer) ? perms : null);
+	}
+	
+	/**
+	 * Pass the permissions granted to the given user and its roles to the given consumer without loading them all in memory
+	 * <p>
+	 * The permissions are sorted by source (the roles first then the user) and by name.
+	 * </p>
+	 * @param serverid The server
+	 * @param userid The user
+	 * @param offset The number of permissions to skip
+	 * @param limit The maximum number of permissions to list (0 for no limit)
+	 * @param consumer The permissions consumer, can stop the listing
+	 * @return false if the user is not found or if an error occured
+	 */
+	public static boolean forEach(long serverid, long userid, int offset, int limit, PermConsumer consumer) {
+		Member member = JdaUtils.getMember(serverid, userid);
+		return ((member != null) && forEach(serverid, member, offset, limit, consumer));
+	}
+	
+	private static boolean forEach(long serverid, Member member, int offset, int limit, PermConsumer consumer) {
+		long userid = member.getUser().getIdLong();
+		
+		long start = System.nanoTime();
+		try {
+			PermissionDAO.listGranted(serverid, userid, JdaUtils.getAllRoleIdLong(member), offset, limit, consumer);
 		} catch(Exception e) {
-			e.printStackTrace();
-			return null;
+			logger.error("Error while listing permissions for user " + userid + "@" + serverid, e);
+			return false;
+		} finally {
+			PermissionMetrics.record(Op.LIST, start, serverid, userid);
 		}
 		
-		return perms;
+		return true;
 	}
 	
 	/**
@@ -494,29 +974,35 @@ public class Permissions {
 	 * @param roleid The role
 	 * @return A list of all the perms or null if an error occured
 	 */
-	public static List<String> getAllFromRole(long serverid, long roleid) {	
-		Role role = JdaUtils.getRole(serverid, roleid);
-		if(role == null)
-			return null;
-		
-		List<String> perms = new LinkedList<>();
+	public static List<String> getAllFromRole(long serverid, long roleid) {
+		List<String> perms = new ArrayList<>();
+		return (forEachFromRole(serverid, roleid, 0, 0, (fromRole, source, perm) -> perms.add(perm)) ? perms : null);
+	}
+	
+	/**
+	 * Pass the permissions granted by the given role to the given consumer without loading them all in memory
+	 * @param serverid The server
+	 * @param roleid The role
+	 * @param offset The number of permissions to skip
+	 * @param limit The maximum number of permissions to list (0 for no limit)
+	 * @param consumer The permissions consumer, can stop the listing
+	 * @return false if the role is not found or if an error occured
+	 */
+	public static boolean forEachFromRole(long serverid, long roleid, int offset, int limit, PermConsumer consumer) {
+		if(JdaUtils.getRole(serverid, roleid) == null)
+			return false;
 		
-		try (Connection conn = DB.getConn()) {
-			PreparedStatement stat = conn.prepareStatement(getAllRolePermsName);
-			stat.setLong(1, serverid);
-			stat.setLong(2, roleid);
-			stat.execute();
-			ResultSet res = stat.getResultSet();
-			
-			while(res.next())
-				perms.add(res.getBoolean(2) ? res.getString(1) + ".*" : res.getString(1));
-			
+		long start = System.nanoTime();
+		try {
+			PermissionDAO.listRoleGranted(serverid, roleid, offset, limit, consumer);
 		} catch(Exception e) {
-			e.printStackTrace();
-			return null;
+			logger.error("Error while listing permissions for role " + roleid + "@" + serverid, e);
+			return false;
+		} finally {
+			PermissionMetrics.record(Op.LIST, start, serverid, roleid);
 		}
 		
-		return perms;
+		return true;
 	}
 
 }
@@ -5,6 +5,9 @@ import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.exceptions.AccountTypeException;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
 import net.dv8tion.jda.internal.utils.JDALogger;
 import net.shadowpie.sadiinso.sfc.commands.Commands;
 import net.shadowpie.sadiinso.sfc.commands.base.BaseCommands;
@@ -13,12 +16,16 @@ import net.shadowpie.sadiinso.sfc.commands.base.PermissionCommands;
 import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.db.DB;
 import net.shadowpie.sadiinso.sfc.listeners.ConsoleListener;
+import net.shadowpie.sadiinso.sfc.listeners.EventSubscriptions;
 import net.shadowpie.sadiinso.sfc.listeners.SFCListener;
 import net.shadowpie.sadiinso.sfc.permissions.Permissions;
+import net.shadowpie.sadiinso.sfc.webapi.BaseEndpoints;
 import net.shadowpie.sadiinso.sfc.webapi.WebAPI;
+import net.shadowpie.sadiinso.sfc.webapi.WebEndpoints;
 import org.slf4j.Logger;
 
 import javax.security.auth.login.LoginException;
+import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -38,7 +45,7 @@ public class SFC {
 	private static List<Runnable> shutdownHooks;
 	
 	private static JDA jda;
-	private static SFCListener listener;
+	private static final SFCListener listener = new SFCListener();
 	private static String selfMention;
 	
 	/**
@@ -108,7 +115,7 @@ public class SFC {
 		//########
 		logger.info("Initialing JDA library...");
 		try {
-			jda = new JDABuilder(AccountType.BOT).setToken(SFConfig.bot_token()).build();
+			jda = createBuilder().build();
 			jda.awaitReady();
 		} catch (AccountTypeException e) {
 			logger.warn("The given token is a client token, trying to launch as a selfbot...");
@@ -133,7 +140,6 @@ public class SFC {
 		//##############
 		//INIT LISTENERS
 		//##############
-		listener = new SFCListener();
 		jda.addEventListener(listener);
 		selfMention = jda.getSelfUser().getAsMention();
 		
@@ -171,11 +177,30 @@ public class SFC {
 		//##################
 		//INIT SOCKET SERVER
 		//##################
+		WebEndpoints.addHandlers(BaseEndpoints.class);
 		WebAPI.init();
 		
 		logger.info("SFC loaded successfully !");
 	}
 
+	/**
+	 * Return the builder of the bot JDA instance, only the gateway intents required by the registered
+	 * handlers are enabled if the "event_subscriptions" option is set
+	 */
+	private static JDABuilder createBuilder() {
+		if(!SFConfig.sfConfig.getBool("event_subscriptions", false)) {
+			return new JDABuilder(AccountType.BOT).setToken(SFConfig.bot_token());
+		}
+		
+		EnumSet<GatewayIntent> intents = EventSubscriptions.intents(listener);
+		EnumSet<CacheFlag> disabledCache = EventSubscriptions.disabledCache(intents);
+		logger.info("Enabled gateway intents: " + intents + ", disabled cache: " + disabledCache);
+		
+		return JDABuilder.create(SFConfig.bot_token(), intents)
+				.disableCache(disabledCache)
+				.setMemberCachePolicy(MemberCachePolicy.ALL);
+	}
+	
 	/**
 	 * Return the String used to mention the bot
 	 */
@@ -190,6 +215,10 @@ public class SFC {
 		return jda;
 	}
 
+	/**
+	 * Return the bot listener, available before {@link #init()} so that the event handlers can be
+	 * registered before the gateway intents are computed
+	 */
 	public static SFCListener getListener() {
 		return listener;
 	}
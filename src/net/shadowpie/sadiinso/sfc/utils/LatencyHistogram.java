@@ -0,0 +1,145 @@
+package net.shadowpie.sadiinso.sfc.utils;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram
+ * <p>
+ * The latencies are counted in power of two buckets of microseconds (bucket n holds the
+ * latencies lower than 2^n µs), the percentiles are therefore upper bounds accurate to a
+ * factor of two, which is enough to tell a cache hit from a database round trip.
+ * </p>
+ */
+public final class LatencyHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public LatencyHistogram() {
+		for (int t = 0; t < BUCKETS; t++) {
+			buckets[t] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Record a latency
+	 *
+	 * @param nanos The latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		long micros = nanos / 1000;
+		buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+		count.increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Record the time elapsed since the given {@link System#nanoTime()} value
+	 *
+	 * @return The elapsed time in nanoseconds
+	 */
+	public long since(long start) {
+		long elapsed = System.nanoTime() - start;
+		record(elapsed);
+		return elapsed;
+	}
+
+	/**
+	 * Return the number of recorded latencies
+	 */
+	public long count() {
+		return count.sum();
+	}
+
+	/**
+	 * Return the mean latency in microseconds
+	 */
+	public double mean() {
+		long n = count.sum();
+		return ((n == 0) ? 0 : (total.sum() / 1000d / n));
+	}
+
+	/**
+	 * Return the highest recorded latency in microseconds
+	 */
+	public long max() {
+		return (max.get() / 1000);
+	}
+
+	/**
+	 * Return an upper bound of the given percentile in microseconds
+	 *
+	 * @param p The percentile, between 0 and 1
+	 */
+	public long percentile(double p) {
+		long[] counts = new long[BUCKETS];
+		long n = 0;
+		for (int t = 0; t < BUCKETS; t++) {
+			counts[t] = buckets[t].sum();
+			n += counts[t];
+		}
+
+		if (n == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(p * n);
+		long seen = 0;
+		for (int t = 0; t < BUCKETS; t++) {
+			seen += counts[t];
+			if (seen >= rank) {
+				return Math.min(max(), (1L << t) - 1);
+			}
+		}
+
+		return max();
+	}
+
+	/**
+	 * Clear all the recorded latencies
+	 */
+	public void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+
+		count.reset();
+		total.reset();
+		max.reset();
+	}
+
+	/**
+	 * Write the summary of this histogram (count, mean, p50, p95, p99 and max in microseconds) to the given node
+	 */
+	public ObjectNode toJson(ObjectNode node) {
+		node.put("count", count());
+		node.put("mean_us", Math.round(mean()));
+		node.put("p50_us", percentile(0.5));
+		node.put("p95_us", percentile(0.95));
+		node.put("p99_us", percentile(0.99));
+		node.put("max_us", max());
+		return node;
+	}
+
+	/**
+	 * Return the summary of this histogram as a single line
+	 */
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.2fms p50<=%.2fms p95<=%.2fms p99<=%.2fms max=%.2fms", count(), mean() / 1000d,
+				percentile(0.5) / 1000d, percentile(0.95) / 1000d, percentile(0.99) / 1000d, max() / 1000d);
+	}
+
+}
@@ -6,12 +6,17 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import net.dv8tion.jda.api.EmbedBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.RenderedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.*;
 
@@ -437,6 +442,28 @@ public class SFUtils {
 		}
 	}
 	
+	/**
+	 * Return the content of the given data file, looked up in the classpath then in the "data" directory
+	 * @param name The file name
+	 * @return The file content or null if the file is not found or can't be read
+	 */
+	public static String getDataResourceAsString(String name) {
+		try (InputStream in = SFUtils.class.getResourceAsStream("/" + name)) {
+			if (in != null) {
+				return IOUtils.toString(in, StandardCharsets.UTF_8);
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		
+		File file = new File("data", name);
+		try {
+			return (file.isFile() ? FileUtils.readFileToString(file, StandardCharsets.UTF_8) : null);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
 	public static String charSeqToString(CharSequence cs) {
 		if(cs == null) {
 			return null;
@@ -0,0 +1,124 @@
+package net.shadowpie.sadiinso.sfc.utils;
+
+import net.dv8tion.jda.internal.utils.JDALogger;
+import net.shadowpie.sadiinso.sfc.config.SFConfig;
+import org.slf4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Access to the virtual threads of the recent JVMs
+ * <p>
+ * The library targets Java 11, the virtual threads builder is therefore looked up by reflection
+ * once. The virtual threads are opt-in through the "virtual_threads" entry of the SnowFlakeCore
+ * configuration, when the JVM does not support them the callers fall back to platform threads.
+ * </p>
+ */
+public final class VirtualThreads {
+
+	private static final Logger logger = JDALogger.getLog("VirtualThreads");
+
+	// Thread.ofVirtual(), Thread.Builder.name(String, long) and Thread.Builder.factory(), null if not supported
+	private static final Method ofVirtual;
+	private static final Method name;
+	private static final Method factory;
+
+	private static volatile Boolean enabled;
+
+	static {
+		Method ov = null;
+		Method nm = null;
+		Method fc = null;
+
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ov = Thread.class.getMethod("ofVirtual");
+			nm = builder.getMethod("name", String.class, long.class);
+			fc = builder.getMethod("factory");
+		} catch (ReflectiveOperationException ignored) {
+			ov = null;
+		}
+
+		ofVirtual = ov;
+		name = nm;
+		factory = fc;
+	}
+
+	// Suppresses default constructor, ensuring non-instantiability.
+	private VirtualThreads() {}
+
+	/**
+	 * Return whether the JVM supports the virtual threads
+	 */
+	public static boolean isSupported() {
+		return (ofVirtual != null);
+	}
+
+	/**
+	 * Return whether the virtual threads are enabled by the configuration and supported by the JVM
+	 * <p>
+	 * The support is probed by building a factory, the preview JVMs expose the builder but
+	 * refuse to create it unless the preview features are enabled.
+	 * </p>
+	 */
+	public static boolean isEnabled() {
+		Boolean res = enabled;
+		if (res == null) {
+			res = SFConfig.sfConfig.getBool("virtual_threads", false);
+			if (res && (factory("probe") == null)) {
+				logger.warn("Virtual threads are not supported by this JVM (" + System.getProperty("java.version") + "), using platform threads");
+				res = false;
+			}
+
+			enabled = res;
+		}
+
+		return res;
+	}
+
+	/**
+	 * Return a factory of virtual threads named "prefix-n"
+	 *
+	 * @param prefix The prefix of the threads names
+	 * @return The factory or null if the virtual threads are not supported
+	 */
+	public static ThreadFactory factory(String prefix) {
+		if (!isSupported()) {
+			return null;
+		}
+
+		try {
+			Object builder = name.invoke(ofVirtual.invoke(null), prefix + "-", 1L);
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.debug("Unable to create a virtual threads factory", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Return an executor starting a new virtual thread for each task
+	 * <p>
+	 * The executor never queues the tasks, the callers are responsible for bounding the number
+	 * of tasks in flight.
+	 * </p>
+	 *
+	 * @param prefix The prefix of the threads names
+	 * @return The executor or null if the virtual threads are not supported
+	 */
+	public static ExecutorService newPerTaskExecutor(String prefix) {
+		ThreadFactory threads = factory(prefix);
+		if (threads == null) {
+			return null;
+		}
+
+		// no idle thread is kept, each task is handed to a new thread
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS, new SynchronousQueue<>(), threads);
+	}
+
+}
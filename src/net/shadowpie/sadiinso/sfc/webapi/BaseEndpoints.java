@@ -0,0 +1,39 @@
+package net.shadowpie.sadiinso.sfc.webapi;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import net.shadowpie.sadiinso.sfc.commands.handlers.CommandMetrics;
+import net.shadowpie.sadiinso.sfc.permissions.PermissionMetrics;
+
+public class BaseEndpoints {
+	
+	/**
+	 * Return the latency metrics of the permissions and database modules,
+	 * the metrics are cleared if the request data contains "reset": true
+	 */
+	@ASFWebEndpoint(cmd = "perm_stats")
+	public static ObjectNode onPermStats(ObjectNode data) {
+		ObjectNode reply = PermissionMetrics.toJson();
+		
+		if ((data != null) && data.path("reset").asBoolean(false)) {
+			PermissionMetrics.reset();
+		}
+		
+		return reply;
+	}
+	
+	/**
+	 * Return the invocations and latencies of the invoked commands by command path,
+	 * the metrics are cleared if the request data contains "reset": true
+	 */
+	@ASFWebEndpoint(cmd = "command_stats")
+	public static ObjectNode onCommandStats(ObjectNode data) {
+		ObjectNode reply = CommandMetrics.allToJson();
+		
+		if ((data != null) && data.path("reset").asBoolean(false)) {
+			CommandMetrics.resetAll();
+		}
+		
+		return reply;
+	}
+	
+}
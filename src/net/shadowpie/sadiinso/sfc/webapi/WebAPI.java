@@ -5,6 +5,7 @@ import net.dv8tion.jda.internal.utils.JDALogger;
 import net.shadowpie.sadiinso.sfc.config.SFConfig;
 import net.shadowpie.sadiinso.sfc.config.SFConfig.Config;
 import net.shadowpie.sadiinso.sfc.utils.SFUtils;
+import net.shadowpie.sadiinso.sfc.utils.VirtualThreads;
 import org.slf4j.Logger;
 
 import java.io.*;
@@ -12,6 +13,7 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
 
 public class WebAPI {
 	
@@ -19,6 +21,9 @@ public class WebAPI {
 	
 	private static ServerSocket server;
 	private static Thread serverThread;
+	
+	// null if each client is handled by a new platform thread
+	private static ExecutorService clients;
 	private static boolean init = false;
 	
 	public static void init() {
@@ -49,6 +54,10 @@ public class WebAPI {
 			return;
 		}
 		
+		if (VirtualThreads.isEnabled()) {
+			clients = VirtualThreads.newPerTaskExecutor("socket_client");
+		}
+		
 		if(WebEndpoints.size() == 0) {
 			logger.error("No endpoints registered, cancelling socket server starting...");
 		} else {
@@ -82,11 +91,18 @@ public class WebAPI {
 		}
 		
 		serverThread.interrupt();
+		if (clients != null) {
+			clients.shutdown();
+		}
 	}
 	
 	static class SocketClientHandler implements Runnable {
 		public static void accept(Socket socket) {
-			new Thread(new SocketClientHandler(socket)).start();
+			if (clients == null) {
+				new Thread(new SocketClientHandler(socket)).start();
+			} else {
+				clients.execute(new SocketClientHandler(socket));
+			}
 		}
 		
 		private final Socket socket;